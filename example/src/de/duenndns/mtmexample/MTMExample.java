@@ -18,13 +18,13 @@ import android.widget.TextView;
 import java.net.URL;
 import java.security.KeyStoreException;
 import java.util.ArrayList;
-import java.util.Collections;
+import java.util.List;
 
 import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.SSLContext;
 import javax.net.ssl.HttpsURLConnection;
-import javax.net.ssl.X509TrustManager;
 
+import de.duenndns.ssl.MTMCertificateInfo;
+import de.duenndns.ssl.MTMKeyStoreFile;
 import de.duenndns.ssl.MemorizingTrustManager;
 
 /**
@@ -67,17 +67,13 @@ public class MTMExample extends Activity
 
 		// Here, the MemorizingTrustManager is activated for HTTPS
 		try {
-			// set location of the keystore
-			MemorizingTrustManager.setKeyStoreFile("private", "sslkeys.bks");
-
-			// register MemorizingTrustManager for HTTPS
-			SSLContext sc = SSLContext.getInstance("TLS");
-			mtm = new MemorizingTrustManager(this);
-			sc.init(null, new X509TrustManager[] { mtm },
-					new java.security.SecureRandom());
-			HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
-			HttpsURLConnection.setDefaultHostnameVerifier(
-					mtm.wrapHostnameVerifier(HttpsURLConnection.getDefaultHostnameVerifier()));
+			// register MemorizingTrustManager for HTTPS, with the
+			// keystore in a custom location
+			MTMKeyStoreFile keyStore = new MTMKeyStoreFile(
+					MemorizingTrustManager.getKeyStoreFile(this, "private", "sslkeys.bks"));
+			mtm = new MemorizingTrustManager(this, keyStore, false);
+			HttpsURLConnection.setDefaultSSLSocketFactory(mtm.getSSLSocketFactory("TLS"));
+			HttpsURLConnection.setDefaultHostnameVerifier(mtm.getHostnameVerifier());
 
 			// disable redirects to reduce possible confusion
 			HttpsURLConnection.setFollowRedirects(false);
@@ -134,17 +130,21 @@ public class MTMExample extends Activity
 	
 	/** React on the "Manage Certificates" button press. */
 	public void onManage(View view) {
-		final ArrayList<String> aliases = Collections.list(mtm.getCertificates());
-		ArrayAdapter<String> adapter = new ArrayAdapter<String>(this, android.R.layout.select_dialog_item, aliases);
+		// only the first page, sorted by expiry
+		final List<MTMCertificateInfo> certs = mtm.listCertificates(null, MTMCertificateInfo.BY_EXPIRY, 0, 100);
+		ArrayList<String> labels = new ArrayList<String>(certs.size());
+		for (MTMCertificateInfo info : certs)
+			labels.add(info.getAlias() + "\nexpires " + info.getNotAfter());
+		ArrayAdapter<String> adapter = new ArrayAdapter<String>(this, android.R.layout.select_dialog_item, labels);
 		new AlertDialog.Builder(this).setTitle("Tap Certificate to Delete")
 				.setNegativeButton(android.R.string.cancel, null)
 				.setAdapter(adapter, new DialogInterface.OnClickListener() {
 						@Override
 						public void onClick(DialogInterface dialog, int which) {
 							try {
-								String alias = aliases.get(which);
-								mtm.deleteCertificate(alias);
-								setText("Deleted " + alias, false);
+								MTMCertificateInfo info = certs.get(which);
+								mtm.deleteCertificates(info.getAliases());
+								setText("Deleted " + info.getAlias(), false);
 							} catch (KeyStoreException e) {
 								e.printStackTrace();
 								setText("Error: " + e.getLocalizedMessage(), false);
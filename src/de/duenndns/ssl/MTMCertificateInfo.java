@@ -0,0 +1,146 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Light-weight description of a memorized certificate, for listing the
+ * store content without decoding the certificates.
+ * <p>
+ * A certificate can be stored under several aliases: under its subject
+ * when it was accepted as untrusted, and under each hostname it was
+ * accepted for despite a mismatch.
+ *
+ * @see MemorizingTrustManager#listCertificates(String, Comparator, int, int)
+ */
+public class MTMCertificateInfo {
+	/** Orders by primary alias. */
+	public static final Comparator<MTMCertificateInfo> BY_ALIAS = new Comparator<MTMCertificateInfo>() {
+		@Override
+		public int compare(MTMCertificateInfo a, MTMCertificateInfo b) {
+			return a.alias.compareToIgnoreCase(b.alias);
+		}
+	};
+
+	/** Orders by subject name. */
+	public static final Comparator<MTMCertificateInfo> BY_SUBJECT = new Comparator<MTMCertificateInfo>() {
+		@Override
+		public int compare(MTMCertificateInfo a, MTMCertificateInfo b) {
+			return a.subjectName().compareToIgnoreCase(b.subjectName());
+		}
+	};
+
+	/** Orders by expiry date, the certificate expiring first comes first. */
+	public static final Comparator<MTMCertificateInfo> BY_EXPIRY = new Comparator<MTMCertificateInfo>() {
+		@Override
+		public int compare(MTMCertificateInfo a, MTMCertificateInfo b) {
+			return (a.notAfter < b.notAfter) ? -1 : ((a.notAfter == b.notAfter) ? 0 : 1);
+		}
+	};
+
+	private final String alias;
+	private final String fingerprint;
+	private final X500Principal subject;
+	private final long notAfter;
+	private final List<String> aliases;
+	private final List<String> hostnames;
+
+	MTMCertificateInfo(String alias, String fingerprint, X500Principal subject, long notAfter,
+			List<String> aliases, List<String> hostnames) {
+		this.alias = alias;
+		this.fingerprint = fingerprint;
+		this.subject = subject;
+		this.notAfter = notAfter;
+		this.aliases = Collections.unmodifiableList(aliases);
+		this.hostnames = Collections.unmodifiableList(hostnames);
+	}
+
+	/** Returns the primary alias, the subject DN if stored under it. */
+	public String getAlias() {
+		return alias;
+	}
+
+	/** Returns all aliases the certificate is stored under. */
+	public List<String> getAliases() {
+		return aliases;
+	}
+
+	/** Returns the SHA-256 fingerprint as colon separated hex string. */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+
+	/** Returns the subject, or <tt>null</tt> for non-X.509 certificates. */
+	public X500Principal getSubject() {
+		return subject;
+	}
+
+	/** Returns the end of the validity period. */
+	public Date getNotAfter() {
+		return new Date(notAfter);
+	}
+
+	/** Checks if the certificate has expired at the given time. */
+	public boolean isExpired(long now) {
+		return notAfter != 0 && notAfter < now;
+	}
+
+	/** Returns the hostnames the certificate was explicitly accepted for. */
+	public List<String> getHostnames() {
+		return hostnames;
+	}
+
+	private String subjectName() {
+		return (subject != null) ? subject.getName() : "";
+	}
+
+	/**
+	 * Checks if the alias, subject, fingerprint or a hostname contain
+	 * the filter string, ignoring case.
+	 */
+	boolean matches(String filter) {
+		if (filter == null || filter.length() == 0)
+			return true;
+		String f = filter.toLowerCase(Locale.US);
+		if (subjectName().toLowerCase(Locale.US).contains(f)
+				|| fingerprint.toLowerCase(Locale.US).contains(f))
+			return true;
+		for (String a : aliases)
+			if (a.toLowerCase(Locale.US).contains(f))
+				return true;
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return alias + " (" + fingerprint + ")";
+	}
+}
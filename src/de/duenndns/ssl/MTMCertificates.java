@@ -0,0 +1,155 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.security.MessageDigest;
+import java.security.cert.CertificateParsingException;
+import java.security.cert.X509Certificate;
+import java.util.Collection;
+import java.util.List;
+import java.util.Locale;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Hostname matching and fingerprints of certificates.
+ * <p>
+ * This class must not depend on Android, so that {@link MTMReplay} can
+ * run on a plain JVM.
+ */
+final class MTMCertificates {
+	private final static Logger LOGGER = Logger.getLogger(MTMCertificates.class.getName());
+
+	private MTMCertificates() {
+	}
+
+	private static boolean isIpAddress(String hostname) {
+		return hostname.indexOf(':') >= 0 || hostname.matches("[0-9.]+");
+	}
+
+	static boolean matchesDnsName(String hostname, String pattern) {
+		pattern = pattern.toLowerCase(Locale.US);
+		if (pattern.endsWith("."))
+			pattern = pattern.substring(0, pattern.length() - 1);
+		if (!pattern.startsWith("*."))
+			return hostname.equals(pattern);
+		// a wildcard only matches exactly one full label
+		String suffix = pattern.substring(1);
+		return hostname.endsWith(suffix) && hostname.length() > suffix.length()
+			&& hostname.lastIndexOf('.', hostname.length() - suffix.length() - 1) < 0;
+	}
+
+	/**
+	 * Checks if the certificate's subject alternative names cover the
+	 * given hostname or IP address. Like current Android versions, the
+	 * subject CN is not considered.
+	 */
+	static boolean certMatchesHostname(X509Certificate cert, String hostname) {
+		hostname = hostname.toLowerCase(Locale.US);
+		if (hostname.endsWith("."))
+			hostname = hostname.substring(0, hostname.length() - 1);
+		boolean ip = isIpAddress(hostname);
+		Collection<List<?>> sans;
+		try {
+			sans = cert.getSubjectAlternativeNames();
+		} catch (CertificateParsingException e) {
+			LOGGER.log(Level.FINE, "certMatchesHostname(" + hostname + ")", e);
+			return false;
+		}
+		if (sans == null)
+			return false;
+		for (List<?> altName : sans) {
+			int type = (Integer)altName.get(0);
+			Object name = altName.get(1);
+			if (!(name instanceof String))
+				continue;
+			if (ip && type == 7) {
+				try {
+					if (InetAddress.getByName(hostname).equals(InetAddress.getByName((String)name)))
+						return true;
+				} catch (UnknownHostException e) {
+					// only literals are resolved here, skip malformed entries
+				}
+			} else if (!ip && type == 2 && matchesDnsName(hostname, (String)name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private final static char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+	static String hexString(byte[] data) {
+		if (data.length == 0)
+			return "";
+		char[] si = new char[data.length * 3 - 1];
+		for (int i = 0; i < data.length; i++) {
+			si[i * 3] = HEX_DIGITS[(data[i] >> 4) & 0xf];
+			si[i * 3 + 1] = HEX_DIGITS[data[i] & 0xf];
+			if (i < data.length - 1)
+				si[i * 3 + 2] = ':';
+		}
+		return new String(si);
+	}
+
+	static String certHash(final X509Certificate cert, String digest) {
+		try {
+			MessageDigest md = MessageDigest.getInstance(digest);
+			md.update(cert.getEncoded());
+			return hexString(md.digest());
+		} catch (java.security.cert.CertificateEncodingException e) {
+			return e.getMessage();
+		} catch (java.security.NoSuchAlgorithmException e) {
+			return e.getMessage();
+		}
+	}
+
+	/** Calculates a fingerprint over all certificates of a chain, in order. */
+	static String chainHash(final X509Certificate[] chain, String digest) {
+		try {
+			MessageDigest md = MessageDigest.getInstance(digest);
+			for (X509Certificate cert : chain)
+				md.update(cert.getEncoded());
+			return hexString(md.digest());
+		} catch (java.security.cert.CertificateEncodingException e) {
+			return e.getMessage();
+		} catch (java.security.NoSuchAlgorithmException e) {
+			return e.getMessage();
+		}
+	}
+
+	/**
+	 * Checks if a certificate may sign other certificates: it needs CA
+	 * basic constraints and, if key usage is present, keyCertSign.
+	 */
+	static boolean isCA(X509Certificate cert) {
+		if (cert.getBasicConstraints() < 0)
+			return false;
+		boolean[] keyUsage = cert.getKeyUsage();
+		// bit 5 is keyCertSign
+		return keyUsage == null || (keyUsage.length > 5 && keyUsage[5]);
+	}
+}
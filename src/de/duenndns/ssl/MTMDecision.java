@@ -23,11 +23,42 @@
  */
 package de.duenndns.ssl;
 
+import java.io.File;
+import java.security.cert.X509Certificate;
+
 class MTMDecision {
 	public final static int DECISION_INVALID	= 0;
 	public final static int DECISION_ABORT		= 1;
 	public final static int DECISION_ONCE		= 2;
 	public final static int DECISION_ALWAYS	= 3;
 
+	int id;
 	int state = DECISION_INVALID;
+
+	// what to show in MemorizingActivity
+	final String message;
+	final int titleId;
+	// decisions with the same key are about the same problem
+	final String similarityKey;
+	// run after the result is set, for decisions nobody is waiting on
+	Runnable onResult;
+
+	// what to store on "always", so it can be done without the waiting
+	// thread or even after a process restart
+	X509Certificate cert;
+	String alias;
+	String storeLocation;
+	// the same in app-private storage, referenced by the notification's intent,
+	// written in the background
+	volatile File payloadFile;
+
+	MTMDecision(String message, int titleId, String similarityKey) {
+		this.message = message;
+		this.titleId = titleId;
+		this.similarityKey = similarityKey;
+	}
+
+	boolean isSimilar(MTMDecision other) {
+		return similarityKey != null && similarityKey.equals(other.similarityKey);
+	}
 }
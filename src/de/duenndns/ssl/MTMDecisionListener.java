@@ -0,0 +1,43 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+/**
+ * Receives the results of deferred decisions.
+ *
+ * @see MemorizingTrustManager#setDeferredDecisions(int)
+ */
+public interface MTMDecisionListener {
+	/**
+	 * Called when the user has answered a deferred decision. The decision
+	 * is already applied, so a connection can be retried right away.
+	 *
+	 * This is called on a background thread.
+	 *
+	 * @param decisionId the ID from {@link MTMDeferredDecisionException#getDecisionId()}
+	 * @param decision {@link MTMPolicy#ABORT}, {@link MTMPolicy#ONCE} or
+	 *     {@link MTMPolicy#ALWAYS}
+	 */
+	void onDecision(int decisionId, int decision);
+}
@@ -0,0 +1,49 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.security.cert.CertificateException;
+
+/**
+ * Thrown instead of waiting for the user, if the certificate decision was
+ * deferred. The decision stays queued and its result is passed to the
+ * {@link MTMDecisionListener}.
+ *
+ * @see MemorizingTrustManager#setDeferredDecisions(int)
+ */
+public class MTMDeferredDecisionException extends CertificateException {
+	private static final long serialVersionUID = 1L;
+
+	private final int decisionId;
+
+	MTMDeferredDecisionException(int decisionId, CertificateException cause) {
+		super("Certificate decision " + decisionId + " deferred to the user", cause);
+		this.decisionId = decisionId;
+	}
+
+	/** Returns the ID of the queued decision. */
+	public int getDecisionId() {
+		return decisionId;
+	}
+}
@@ -0,0 +1,210 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.OverlappingFileLockException;
+import java.security.KeyStoreException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Inter-process lock for a store file, used by the file based MTMStores.
+ * <p>
+ * The lock file next to the store file contains a generation counter that
+ * is incremented on every write. Other processes detect a change with a
+ * single stat() call on the lock file, and can then compare generations.
+ * <p>
+ * The file lock is held per process, so threads are serialized with an
+ * additional reentrant lock. It is shared by all instances for the same
+ * file, as several stores may be opened on one file in a process.
+ * Nested locking is not supported.
+ */
+class MTMFileLock {
+	private final static Logger LOGGER = Logger.getLogger(MTMFileLock.class.getName());
+
+	// thread locks of all lock files in this process, by canonical path
+	private static final Map<String, ReentrantLock> threadLocks = new HashMap<String, ReentrantLock>();
+
+	private final File lockFile;
+	private final ReentrantLock threadLock;
+	private RandomAccessFile locked;
+	// generation counter and lock file mtime of the last state seen by us
+	private long generation;
+	private volatile long stamp;
+
+	MTMFileLock(File file) {
+		lockFile = new File(file + ".lock");
+		threadLock = getThreadLock(lockFile);
+	}
+
+	private static ReentrantLock getThreadLock(File lockFile) {
+		String path;
+		try {
+			path = lockFile.getCanonicalPath();
+		} catch (IOException e) {
+			path = lockFile.getAbsolutePath();
+		}
+		synchronized (threadLocks) {
+			ReentrantLock lock = threadLocks.get(path);
+			if (lock == null) {
+				lock = new ReentrantLock();
+				threadLocks.put(path, lock);
+			}
+			return lock;
+		}
+	}
+
+	/**
+	 * Acquires the lock. If the file can not be locked, the error is
+	 * logged and only other threads are locked out, which is only good
+	 * enough for reading. Use {@link #lockForUpdate()} for writing.
+	 *
+	 * @param shared true for reading, false for modifying the store
+	 */
+	void lock(boolean shared) {
+		threadLock.lock();
+		try {
+			lockFile(shared);
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "lock(" + lockFile + ")", e);
+		}
+	}
+
+	/**
+	 * Acquires the exclusive lock for modifying the store.
+	 *
+	 * @throws KeyStoreException if the file can not be locked, nothing
+	 *	is held then
+	 */
+	void lockForUpdate() throws KeyStoreException {
+		threadLock.lock();
+		try {
+			lockFile(false);
+		} catch (IOException e) {
+			threadLock.unlock();
+			throw new KeyStoreException("lock(" + lockFile + ")", e);
+		}
+	}
+
+	private void lockFile(boolean shared) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(lockFile, "rw");
+		try {
+			raf.getChannel().lock(0L, Long.MAX_VALUE, shared);
+		} catch (OverlappingFileLockException e) {
+			close(raf);
+			// the thread already locked the file through another store
+			throw new IOException("nested lock", e);
+		} catch (IOException e) {
+			close(raf);
+			throw e;
+		}
+		locked = raf;
+	}
+
+	void unlock() {
+		close(locked);
+		locked = null;
+		threadLock.unlock();
+	}
+
+	/** Checks if the calling thread holds the lock. */
+	boolean isHeldByCurrentThread() {
+		return threadLock.isHeldByCurrentThread();
+	}
+
+	private void close(RandomAccessFile raf) {
+		if (raf == null)
+			return;
+		try {
+			raf.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "unlock(" + lockFile + ")", e);
+		}
+	}
+
+	private long readGeneration() {
+		if (locked == null)
+			return -1;
+		try {
+			if (locked.length() < 8)
+				return 0;
+			locked.seek(0);
+			return locked.readLong();
+		} catch (IOException e) {
+			LOGGER.log(Level.SEVERE, "readGeneration(" + lockFile + ")", e);
+			return -1;
+		}
+	}
+
+	/**
+	 * Checks if the lock file was touched since {@link #markSeen()}. This
+	 * does not need the lock.
+	 */
+	boolean isModified() {
+		return lockFile.lastModified() != stamp;
+	}
+
+	/**
+	 * Checks if another process has written the store since
+	 * {@link #markSeen()}. Must be called with the lock held.
+	 */
+	boolean isNewerGeneration() {
+		return readGeneration() != generation;
+	}
+
+	/**
+	 * Records the current on-disk state as known. Must be called with
+	 * the lock held.
+	 */
+	void markSeen() {
+		generation = readGeneration();
+		stamp = lockFile.lastModified();
+	}
+
+	/**
+	 * Increments the generation after writing the store. Must be called
+	 * with the exclusive lock held, and only if the write succeeded.
+	 *
+	 * @throws IOException if the generation could not be written, then
+	 *	other processes will not notice the write
+	 */
+	void markWritten() throws IOException {
+		if (locked == null)
+			throw new IOException("markWritten(" + lockFile + "): not locked");
+		locked.seek(0);
+		locked.writeLong(generation + 1);
+		generation += 1;
+		// some file systems only have a resolution of one second, make
+		// sure that every write is visible as an mtime change
+		long newStamp = Math.max(System.currentTimeMillis(), stamp + 1000);
+		lockFile.setLastModified(newStamp);
+		stamp = lockFile.lastModified();
+	}
+}
@@ -0,0 +1,325 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A file based {@link MTMStore} that decodes certificates on demand.
+ * <p>
+ * A KeyStore file has to be parsed completely on load, which gets slow
+ * with many memorized certificates. This store keeps an index of alias,
+ * fingerprints, subject and expiry date at the end of its file, so that
+ * loading it only reads the index. The certificates are decoded when
+ * they are first accessed.
+ * <p>
+ * Like {@link MTMKeyStoreFile}, the file can be shared between processes.
+ * Existing certificates can be migrated with {@link #importFrom(MTMStore)}.
+ */
+public class MTMIndexedStore extends MTMMemoryStore {
+	private final static Logger LOGGER = Logger.getLogger(MTMIndexedStore.class.getName());
+
+	private final static int MAGIC = 0x4d544d49; // "MTMI"
+	private final static int VERSION = 1;
+
+	/** An entry with the location of its DER encoding in the file. */
+	private static class IndexedEntry extends Entry {
+		final long offset;
+		final int length;
+
+		IndexedEntry(String alias, String fingerprint, String keyFingerprint, X500Principal subject,
+				long notAfter, long offset, int length) {
+			super(alias, fingerprint, keyFingerprint, subject, notAfter);
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final File storeFile;
+	private final MTMFileLock lock;
+	// changes picked up by loadCertificate()
+	private volatile boolean changePending;
+
+	/**
+	 * Creates a store for the given file.
+	 *
+	 * @param storeFile the store file, created on first write.
+	 */
+	public MTMIndexedStore(File storeFile) {
+		this.storeFile = storeFile;
+		this.lock = new MTMFileLock(storeFile);
+	}
+
+	/** Returns the store file. */
+	public File getFile() {
+		return storeFile;
+	}
+
+	/**
+	 * Reads the index of the store file.
+	 *
+	 * @return the entries, empty if the file does not exist yet
+	 */
+	private List<Entry> readIndex() throws KeyStoreException {
+		List<Entry> content = new ArrayList<Entry>();
+		if (storeFile.length() == 0)
+			return content;
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(storeFile, "r");
+			if (raf.readInt() != MAGIC || raf.readInt() != VERSION)
+				throw new KeyStoreException("readIndex(" + storeFile + "): unsupported file format");
+			raf.seek(raf.length() - 8);
+			raf.seek(raf.readLong());
+			int count = raf.readInt();
+			for (int i = 0; i < count; i++) {
+				String alias = raf.readUTF();
+				String fingerprint = raf.readUTF();
+				String keyFingerprint = raf.readUTF();
+				byte[] subject = new byte[raf.readInt()];
+				raf.readFully(subject);
+				long notAfter = raf.readLong();
+				long offset = raf.readLong();
+				int length = raf.readInt();
+				content.add(new IndexedEntry(alias, fingerprint, keyFingerprint,
+						(subject.length > 0) ? new X500Principal(subject) : null,
+						notAfter, offset, length));
+			}
+		} catch (IOException | IllegalArgumentException e) {
+			throw new KeyStoreException("readIndex(" + storeFile + ")", e);
+		} finally {
+			close(raf);
+		}
+		return content;
+	}
+
+	private byte[] readEncoded(RandomAccessFile raf, IndexedEntry e) throws IOException {
+		byte[] encoded = new byte[e.length];
+		raf.seek(e.offset);
+		raf.readFully(encoded);
+		return encoded;
+	}
+
+	/**
+	 * Writes all entries to a new file and replaces the old one with it.
+	 * Certificates that were not decoded yet are copied verbatim.
+	 */
+	private void writeStore() throws KeyStoreException {
+		Collection<Entry> entries = getEntries();
+		List<Entry> written = new ArrayList<Entry>(entries.size());
+		File tmpFile = new File(storeFile + ".tmp");
+		RandomAccessFile old = null;
+		DataOutputStream dos = null;
+		try {
+			dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			for (Entry e : entries) {
+				byte[] encoded;
+				if (e.cert != null) {
+					encoded = e.cert.getEncoded();
+				} else if (e instanceof IndexedEntry) {
+					if (old == null)
+						old = new RandomAccessFile(storeFile, "r");
+					encoded = readEncoded(old, (IndexedEntry)e);
+				} else
+					continue;
+				IndexedEntry ie = new IndexedEntry(e.alias, e.fingerprint, e.keyFingerprint, e.subject, e.notAfter,
+						dos.size(), encoded.length);
+				ie.cert = e.cert;
+				written.add(ie);
+				dos.write(encoded);
+			}
+			long indexOffset = dos.size();
+			dos.writeInt(written.size());
+			for (Entry e : written) {
+				IndexedEntry ie = (IndexedEntry)e;
+				dos.writeUTF(ie.alias);
+				dos.writeUTF(ie.fingerprint);
+				dos.writeUTF(ie.keyFingerprint);
+				byte[] subject = (ie.subject != null) ? ie.subject.getEncoded() : new byte[0];
+				dos.writeInt(subject.length);
+				dos.write(subject);
+				dos.writeLong(ie.notAfter);
+				dos.writeLong(ie.offset);
+				dos.writeInt(ie.length);
+			}
+			dos.writeLong(indexOffset);
+			dos.close();
+			dos = null;
+		} catch (IOException | CertificateException e) {
+			tmpFile.delete();
+			throw new KeyStoreException("writeStore(" + storeFile + ")", e);
+		} finally {
+			close(old);
+			if (dos != null) {
+				try {
+					dos.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "writeStore(" + tmpFile + ")", e);
+				}
+				tmpFile.delete();
+			}
+		}
+		if (!tmpFile.renameTo(storeFile)) {
+			tmpFile.delete();
+			throw new KeyStoreException("writeStore(" + storeFile + "): rename failed");
+		}
+		// the offsets have changed, the decoded certificates are kept
+		replaceEntries(written);
+	}
+
+	private void close(RandomAccessFile raf) {
+		if (raf == null)
+			return;
+		try {
+			raf.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "close(" + storeFile + ")", e);
+		}
+	}
+
+	/**
+	 * Decodes a certificate from the store file. If the file was modified
+	 * by another process in the meantime, the index is re-read first, and
+	 * the current certificate of the alias is returned.
+	 */
+	@Override
+	protected Certificate loadCertificate(Entry e) {
+		boolean locked = !lock.isHeldByCurrentThread();
+		if (locked)
+			lock.lock(true);
+		RandomAccessFile raf = null;
+		try {
+			// reported by the next refresh()
+			if (locked && refreshLocked())
+				changePending = true;
+			// the alias may have been replaced, return what it is now
+			Entry current = getEntry(e.alias);
+			if (current == null)
+				return null;
+			if (current.cert != null)
+				return current.cert;
+			if (!(current instanceof IndexedEntry))
+				return null;
+			LOGGER.log(Level.FINER, "loadCertificate(" + e.alias + ")");
+			raf = new RandomAccessFile(storeFile, "r");
+			byte[] encoded = readEncoded(raf, (IndexedEntry)current);
+			Certificate cert = CertificateFactory.getInstance("X.509")
+					.generateCertificate(new ByteArrayInputStream(encoded));
+			if (current != e) {
+				synchronized (this) {
+					if (current.cert == null)
+						current.cert = cert;
+				}
+			}
+			return cert;
+		} catch (IOException | CertificateException ex) {
+			LOGGER.log(Level.SEVERE, "loadCertificate(" + e.alias + ")", ex);
+			return null;
+		} finally {
+			close(raf);
+			if (locked)
+				lock.unlock();
+		}
+	}
+
+	// must be called with the lock held
+	private boolean refreshLocked() {
+		if (!lock.isNewerGeneration()) {
+			lock.markSeen();
+			return false;
+		}
+		LOGGER.log(Level.FINE, "refresh(" + storeFile + ")");
+		boolean changed;
+		try {
+			changed = replaceEntries(readIndex());
+		} catch (KeyStoreException e) {
+			LOGGER.log(Level.SEVERE, "refresh(" + storeFile + ")", e);
+			return false;
+		}
+		lock.markSeen();
+		return changed;
+	}
+
+	@Override
+	public void load() throws KeyStoreException {
+		lock.lock(true);
+		try {
+			replaceEntries(readIndex());
+			lock.markSeen();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public boolean refresh() {
+		boolean changed = changePending;
+		changePending = false;
+		if (!lock.isModified())
+			return changed;
+		lock.lock(true);
+		try {
+			return refreshLocked() || changed;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Override
+	public void beginUpdate() throws KeyStoreException {
+		lock.lockForUpdate();
+		refreshLocked();
+	}
+
+	@Override
+	public void endUpdate() throws KeyStoreException {
+		try {
+			writeStore();
+			lock.markWritten();
+		} catch (IOException e) {
+			throw new KeyStoreException("endUpdate(" + storeFile + ")", e);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The default {@link MTMStore}, persisting certificates in a KeyStore file
+ * of the platform's default type (BKS on Android).
+ * <p>
+ * The file can be shared between processes. Access is guarded by a lock
+ * file next to it, which also contains a generation counter incremented
+ * on every write. Other processes detect a change with a single stat()
+ * call on the lock file, and then only apply the differing entries.
+ */
+public class MTMKeyStoreFile extends MTMMemoryStore {
+	private final static Logger LOGGER = Logger.getLogger(MTMKeyStoreFile.class.getName());
+
+	private final File keyStoreFile;
+	private final MTMFileLock lock;
+	private final char[] password;
+
+	/**
+	 * Creates a store for the given KeyStore file, using MTM's default password.
+	 *
+	 * @param keyStoreFile the KeyStore file, created on first write.
+	 */
+	public MTMKeyStoreFile(File keyStoreFile) {
+		this(keyStoreFile, "MTM");
+	}
+
+	/**
+	 * Creates a store for the given KeyStore file.
+	 *
+	 * @param keyStoreFile the KeyStore file, created on first write.
+	 * @param password the KeyStore password.
+	 */
+	public MTMKeyStoreFile(File keyStoreFile, String password) {
+		this.keyStoreFile = keyStoreFile;
+		this.lock = new MTMFileLock(keyStoreFile);
+		this.password = password.toCharArray();
+	}
+
+	/** Returns the KeyStore file. */
+	public File getFile() {
+		return keyStoreFile;
+	}
+
+	/**
+	 * Reads the KeyStore file.
+	 *
+	 * @return the entries, empty if the file does not exist yet
+	 */
+	private Map<String, Certificate> readKeyStore() throws KeyStoreException {
+		KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+		try {
+			ks.load(null, null);
+		} catch (NoSuchAlgorithmException | CertificateException | IOException e) {
+			LOGGER.log(Level.SEVERE, "readKeyStore(" + keyStoreFile + ")", e);
+		}
+		InputStream is = null;
+		try {
+			is = new FileInputStream(keyStoreFile);
+			ks.load(is, password);
+		} catch (NoSuchAlgorithmException | CertificateException | IOException e) {
+			LOGGER.log(Level.INFO, "readKeyStore(" + keyStoreFile + ") - exception loading file key store", e);
+		} finally {
+			if (is != null) {
+				try {
+					is.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "readKeyStore(" + keyStoreFile + ") - exception closing file key store input stream", e);
+				}
+			}
+		}
+		Map<String, Certificate> content = new LinkedHashMap<String, Certificate>();
+		for (String alias : Collections.list(ks.aliases())) {
+			Certificate cert = ks.getCertificate(alias);
+			if (cert != null)
+				content.put(alias, cert);
+		}
+		return content;
+	}
+
+	private void writeKeyStore() throws KeyStoreException {
+		KeyStore ks = KeyStore.getInstance(KeyStore.getDefaultType());
+		FileOutputStream fos = null;
+		try {
+			ks.load(null, null);
+			for (String alias : aliases()) {
+				Certificate cert = getCertificate(alias);
+				if (cert != null)
+					ks.setCertificateEntry(alias, cert);
+			}
+			fos = new FileOutputStream(keyStoreFile);
+			ks.store(fos, password);
+		} catch (NoSuchAlgorithmException | CertificateException | IOException e) {
+			throw new KeyStoreException("writeKeyStore(" + keyStoreFile + ")", e);
+		} finally {
+			if (fos != null) {
+				try {
+					fos.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.SEVERE, "writeKeyStore(" + keyStoreFile + ")", e);
+				}
+			}
+		}
+	}
+
+	// must be called with the lock held
+	private boolean refreshLocked() {
+		if (!lock.isNewerGeneration()) {
+			lock.markSeen();
+			return false;
+		}
+		LOGGER.log(Level.FINE, "refresh(" + keyStoreFile + ")");
+		boolean changed;
+		try {
+			changed = replaceContent(readKeyStore());
+		} catch (KeyStoreException e) {
+			LOGGER.log(Level.SEVERE, "refresh(" + keyStoreFile + ")", e);
+			return false;
+		}
+		lock.markSeen();
+		return changed;
+	}
+
+	@Override
+	public void load() throws KeyStoreException {
+		lock.lock(true);
+		try {
+			replaceContent(readKeyStore());
+			lock.markSeen();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Picks up changes made to the KeyStore file by other processes.
+	 *
+	 * This is a single stat() call if nothing has changed. Otherwise,
+	 * the file is parsed and only the differing entries are applied.
+	 */
+	@Override
+	public boolean refresh() {
+		if (!lock.isModified())
+			return false;
+		lock.lock(true);
+		try {
+			return refreshLocked();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Locks the KeyStore file exclusively and merges changes made by
+	 * other processes, so they are not overwritten.
+	 */
+	@Override
+	public void beginUpdate() throws KeyStoreException {
+		lock.lockForUpdate();
+		refreshLocked();
+	}
+
+	/**
+	 * Writes the KeyStore file and releases the lock.
+	 */
+	@Override
+	public void endUpdate() throws KeyStoreException {
+		try {
+			writeKeyStore();
+			lock.markWritten();
+		} catch (IOException e) {
+			throw new KeyStoreException("endUpdate(" + keyStoreFile + ")", e);
+		} finally {
+			lock.unlock();
+		}
+	}
+}
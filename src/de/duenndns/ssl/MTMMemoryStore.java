@@ -0,0 +1,317 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A {@link MTMStore} that only keeps the certificates in memory.
+ * <p>
+ * Useful for tests and for apps that do not want to persist decisions.
+ * Subclasses can add persistence by overriding {@link #load()} and
+ * {@link #endUpdate()}, and can defer decoding of certificates by
+ * creating entries without certificate and overriding
+ * {@link #loadCertificate(Entry)}.
+ */
+public class MTMMemoryStore extends MTMStore {
+	/**
+	 * A store entry. The lookup data is always available, the certificate
+	 * may be decoded on first access.
+	 */
+	protected static class Entry {
+		final String alias;
+		final String fingerprint;
+		final String keyFingerprint;
+		final X500Principal subject;
+		final long notAfter;
+		volatile Certificate cert;
+
+		/** Creates an entry for a decoded certificate. */
+		public Entry(String alias, Certificate cert) {
+			this.alias = alias;
+			this.fingerprint = fingerprint(cert);
+			this.keyFingerprint = keyFingerprint(cert);
+			if (cert instanceof X509Certificate) {
+				this.subject = ((X509Certificate)cert).getSubjectX500Principal();
+				this.notAfter = ((X509Certificate)cert).getNotAfter().getTime();
+			} else {
+				this.subject = null;
+				this.notAfter = 0;
+			}
+			this.cert = cert;
+		}
+
+		/** Creates an entry whose certificate is loaded on demand. */
+		public Entry(String alias, String fingerprint, String keyFingerprint,
+				X500Principal subject, long notAfter) {
+			this.alias = alias;
+			this.fingerprint = fingerprint;
+			this.keyFingerprint = keyFingerprint;
+			this.subject = subject;
+			this.notAfter = notAfter;
+		}
+
+		/** Returns the alias. */
+		public String getAlias() {
+			return alias;
+		}
+
+		/** Returns the SHA-256 fingerprint of the certificate. */
+		public String getFingerprint() {
+			return fingerprint;
+		}
+
+		/** Returns the SHA-256 fingerprint of the certificate's public key. */
+		public String getKeyFingerprint() {
+			return keyFingerprint;
+		}
+
+		/** Returns the subject, or <tt>null</tt> for non-X.509 certificates. */
+		public X500Principal getSubject() {
+			return subject;
+		}
+
+		/** Returns the expiry date in milliseconds since the epoch. */
+		public long getNotAfter() {
+			return notAfter;
+		}
+
+		/**
+		 * Returns the certificate if it has been decoded already,
+		 * <tt>null</tt> otherwise. Use {@link MTMMemoryStore#getCertificate(String)}
+		 * to decode it.
+		 */
+		public Certificate getDecodedCertificate() {
+			return cert;
+		}
+	}
+
+	private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+	// fingerprint -> aliases
+	private final Map<String, List<String>> fingerprints = new HashMap<String, List<String>>();
+	// public key fingerprint -> aliases
+	private final Map<String, List<String>> keyFingerprints = new HashMap<String, List<String>>();
+	// subject -> aliases
+	private final Map<X500Principal, List<String>> subjects = new HashMap<X500Principal, List<String>>();
+
+	@Override
+	public void load() throws KeyStoreException {
+	}
+
+	@Override
+	public synchronized List<String> aliases() {
+		return new ArrayList<String>(entries.keySet());
+	}
+
+	@Override
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	@Override
+	public Certificate getCertificate(String alias) {
+		Entry e;
+		synchronized (this) {
+			e = entries.get(alias);
+			if (e == null)
+				return null;
+			if (e.cert != null)
+				return e.cert;
+		}
+		// not synchronized, loading may need to lock the backing file
+		Certificate cert = loadCertificate(e);
+		synchronized (this) {
+			if (e.cert == null)
+				e.cert = cert;
+		}
+		return cert;
+	}
+
+	@Override
+	public synchronized MTMCertificateInfo getInfo(String alias) {
+		Entry e = entries.get(alias);
+		if (e == null)
+			return null;
+		return new MTMCertificateInfo(alias, e.fingerprint, e.subject, e.notAfter,
+				Collections.singletonList(alias), Collections.<String>emptyList());
+	}
+
+	/**
+	 * Decodes the certificate of an entry that was created without one.
+	 * This is called without holding the store's monitor.
+	 *
+	 * @return the certificate, or <tt>null</tt> if it could not be loaded
+	 */
+	protected Certificate loadCertificate(Entry e) {
+		return null;
+	}
+
+	@Override
+	public synchronized List<String> findAliases(String fingerprint) {
+		List<String> aliases = fingerprints.get(fingerprint);
+		if (aliases == null)
+			return Collections.emptyList();
+		return new ArrayList<String>(aliases);
+	}
+
+	@Override
+	public synchronized List<String> findAliasesByKey(String keyFingerprint) {
+		List<String> aliases = keyFingerprints.get(keyFingerprint);
+		if (aliases == null)
+			return Collections.emptyList();
+		return new ArrayList<String>(aliases);
+	}
+
+	@Override
+	public synchronized boolean containsSubject(X500Principal subject) {
+		return subjects.containsKey(subject);
+	}
+
+	@Override
+	public synchronized List<String> findAliasesBySubject(X500Principal subject) {
+		List<String> aliases = subjects.get(subject);
+		if (aliases == null)
+			return Collections.emptyList();
+		return new ArrayList<String>(aliases);
+	}
+
+	@Override
+	public synchronized void setCertificate(String alias, Certificate cert) throws KeyStoreException {
+		if (alias == null || cert == null)
+			throw new KeyStoreException("alias and certificate must not be null");
+		putEntry(new Entry(alias, cert));
+		contentChanged();
+	}
+
+	@Override
+	public synchronized void deleteCertificate(String alias) throws KeyStoreException {
+		if (entries.containsKey(alias)) {
+			remove(alias);
+			contentChanged();
+		}
+	}
+
+	/** Returns the entry for an alias, or <tt>null</tt>. */
+	protected synchronized Entry getEntry(String alias) {
+		return entries.get(alias);
+	}
+
+	/** Returns a snapshot of all entries. */
+	protected synchronized Collection<Entry> getEntries() {
+		return new ArrayList<Entry>(entries.values());
+	}
+
+	/** Adds an entry, replacing the one with the same alias. */
+	protected synchronized void putEntry(Entry e) {
+		remove(e.alias);
+		entries.put(e.alias, e);
+		addIndex(fingerprints, e.fingerprint, e.alias);
+		addIndex(keyFingerprints, e.keyFingerprint, e.alias);
+		if (e.subject != null)
+			addIndex(subjects, e.subject, e.alias);
+	}
+
+	private static <K> void addIndex(Map<K, List<String>> index, K key, String alias) {
+		List<String> aliases = index.get(key);
+		if (aliases == null) {
+			aliases = new ArrayList<String>(1);
+			index.put(key, aliases);
+		}
+		aliases.add(alias);
+	}
+
+	private static <K> void removeIndex(Map<K, List<String>> index, K key, String alias) {
+		List<String> aliases = index.get(key);
+		if (aliases != null) {
+			aliases.remove(alias);
+			if (aliases.isEmpty())
+				index.remove(key);
+		}
+	}
+
+	private void remove(String alias) {
+		Entry e = entries.remove(alias);
+		if (e == null)
+			return;
+		removeIndex(fingerprints, e.fingerprint, alias);
+		removeIndex(keyFingerprints, e.keyFingerprint, alias);
+		if (e.subject != null)
+			removeIndex(subjects, e.subject, alias);
+	}
+
+	/**
+	 * Replaces the store content, only touching entries that differ.
+	 * Already decoded certificates of unchanged entries are kept.
+	 *
+	 * @param content the new entries
+	 * @return true if anything has changed
+	 */
+	protected synchronized boolean replaceEntries(Collection<Entry> content) {
+		boolean changed = false;
+		Map<String, Entry> fresh = new LinkedHashMap<String, Entry>();
+		for (Entry e : content)
+			fresh.put(e.alias, e);
+		for (String alias : new ArrayList<String>(entries.keySet())) {
+			if (!fresh.containsKey(alias)) {
+				remove(alias);
+				changed = true;
+			}
+		}
+		for (Entry e : fresh.values()) {
+			Entry old = entries.get(e.alias);
+			if (old != null && old.fingerprint.equals(e.fingerprint)) {
+				if (e.cert == null)
+					e.cert = old.cert;
+			} else
+				changed = true;
+			putEntry(e);
+		}
+		if (changed)
+			contentChanged();
+		return changed;
+	}
+
+	/**
+	 * Replaces the store content with decoded certificates.
+	 *
+	 * @see #replaceEntries(Collection)
+	 */
+	protected boolean replaceContent(Map<String, Certificate> content) {
+		List<Entry> fresh = new ArrayList<Entry>(content.size());
+		for (Map.Entry<String, Certificate> e : content.entrySet())
+			fresh.add(new Entry(e.getKey(), e.getValue()));
+		return replaceEntries(fresh);
+	}
+}
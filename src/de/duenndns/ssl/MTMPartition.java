@@ -0,0 +1,195 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.security.KeyStoreException;
+import java.security.cert.Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A namespace inside another {@link MTMStore}, see {@link MTMStore#partition(String)}.
+ * <p>
+ * The entries are stored in the parent store with the alias prefixed by
+ * "<i>namespace</i>/". Lookups use the parent's indexes and only return the
+ * partition's own entries. Loading and persistence are done by the parent,
+ * so all partitions share one file and one update lock.
+ */
+public class MTMPartition extends MTMStore {
+	// parent stores already loaded by one of their partitions
+	private static final Map<MTMStore, Boolean> loadedParents = new WeakHashMap<MTMStore, Boolean>();
+
+	private final MTMStore parent;
+	private final String namespace;
+	private final String prefix;
+	// the parent's revision last reported by refresh()
+	private long revision = -1;
+
+	MTMPartition(MTMStore parent, String namespace) {
+		if (namespace.indexOf('/') >= 0)
+			throw new IllegalArgumentException("namespace must not contain '/': " + namespace);
+		this.parent = parent;
+		this.namespace = namespace;
+		this.prefix = namespace + "/";
+	}
+
+	/** Returns the store containing this partition. */
+	public MTMStore getParent() {
+		return parent;
+	}
+
+	/** Returns the name of this partition. */
+	public String getNamespace() {
+		return namespace;
+	}
+
+	// keeps the aliases of this partition, without the prefix
+	private List<String> strip(List<String> aliases) {
+		List<String> result = new ArrayList<String>();
+		for (String alias : aliases) {
+			if (alias.startsWith(prefix))
+				result.add(alias.substring(prefix.length()));
+		}
+		return result;
+	}
+
+	/**
+	 * Loads the parent store if no other partition has done so yet,
+	 * otherwise just picks up its changes.
+	 */
+	@Override
+	public void load() throws KeyStoreException {
+		synchronized (loadedParents) {
+			if (loadedParents.containsKey(parent)) {
+				parent.refresh();
+			} else {
+				parent.load();
+				loadedParents.put(parent, Boolean.TRUE);
+			}
+		}
+		markSeen();
+	}
+
+	private synchronized void markSeen() {
+		revision = parent.getRevision();
+	}
+
+	/**
+	 * Picks up changes of the parent, including those already picked up
+	 * through another partition of the same parent.
+	 */
+	@Override
+	public boolean refresh() {
+		boolean changed = parent.refresh();
+		long current = parent.getRevision();
+		synchronized (this) {
+			if (current != revision) {
+				revision = current;
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	@Override
+	public long getRevision() {
+		return parent.getRevision();
+	}
+
+	@Override
+	public List<String> aliases() {
+		return strip(parent.aliases());
+	}
+
+	@Override
+	public int size() {
+		return aliases().size();
+	}
+
+	@Override
+	public Certificate getCertificate(String alias) {
+		return parent.getCertificate(prefix + alias);
+	}
+
+	@Override
+	public MTMCertificateInfo getInfo(String alias) {
+		MTMCertificateInfo info = parent.getInfo(prefix + alias);
+		if (info == null)
+			return null;
+		List<String> aliases = new ArrayList<String>(1);
+		aliases.add(alias);
+		return new MTMCertificateInfo(alias, info.getFingerprint(), info.getSubject(),
+				info.getNotAfter().getTime(), aliases, new ArrayList<String>());
+	}
+
+	@Override
+	public List<String> findAliases(String fingerprint) {
+		return strip(parent.findAliases(fingerprint));
+	}
+
+	@Override
+	public List<String> findAliasesByKey(String keyFingerprint) {
+		return strip(parent.findAliasesByKey(keyFingerprint));
+	}
+
+	@Override
+	public List<String> findAliasesBySubject(X500Principal subject) {
+		return strip(parent.findAliasesBySubject(subject));
+	}
+
+	@Override
+	public boolean containsSubject(X500Principal subject) {
+		// the parent's check is cheaper and rules out most subjects
+		return parent.containsSubject(subject) && !findAliasesBySubject(subject).isEmpty();
+	}
+
+	@Override
+	public void beginUpdate() throws KeyStoreException {
+		parent.beginUpdate();
+	}
+
+	@Override
+	public void setCertificate(String alias, Certificate cert) throws KeyStoreException {
+		parent.setCertificate(prefix + alias, cert);
+	}
+
+	@Override
+	public void deleteCertificate(String alias) throws KeyStoreException {
+		parent.deleteCertificate(prefix + alias);
+	}
+
+	@Override
+	public void endUpdate() throws KeyStoreException {
+		try {
+			parent.endUpdate();
+		} finally {
+			// our own changes are known to the caller
+			markSeen();
+		}
+	}
+}
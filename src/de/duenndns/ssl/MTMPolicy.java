@@ -0,0 +1,70 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.security.cert.X509Certificate;
+
+/**
+ * A policy that decides about invalid certificates without asking the user.
+ * <p>
+ * MemorizingTrustManager consults its policy (see
+ * {@link MemorizingTrustManager#setPolicy(MTMPolicy)}) before opening a
+ * dialog. If the policy returns a decision other than {@link #NONE}, it is
+ * applied immediately, as if the user had chosen it. This allows to use MTM
+ * from background services that have no way to interact with the user.
+ */
+public interface MTMPolicy {
+	/** No decision, ask the user. */
+	int NONE	= MTMDecision.DECISION_INVALID;
+	/** Reject the certificate. */
+	int ABORT	= MTMDecision.DECISION_ABORT;
+	/** Accept the certificate for this connection only. */
+	int ONCE	= MTMDecision.DECISION_ONCE;
+	/** Accept the certificate and store it in the KeyStore. */
+	int ALWAYS	= MTMDecision.DECISION_ALWAYS;
+
+	/** The certificate is not signed by a trusted CA. */
+	int ERROR_UNTRUSTED	= 1;
+	/** The certificate is expired or not yet valid. */
+	int ERROR_EXPIRED	= 2;
+	/** Any other certificate validation error. */
+	int ERROR_OTHER		= 4;
+	/** The certificate does not match the server's hostname. */
+	int ERROR_HOSTNAME	= 8;
+	/** Mask matching all error types. */
+	int ERROR_ANY		= ERROR_UNTRUSTED | ERROR_EXPIRED | ERROR_OTHER | ERROR_HOSTNAME;
+
+	/**
+	 * Decides about a certificate that failed validation.
+	 *
+	 * This is called on the connecting thread and should return quickly.
+	 *
+	 * @param chain the certificate chain, starting with the server certificate
+	 * @param hostname the server's hostname, or <tt>null</tt> if not known
+	 * @param error one of the ERROR_* constants
+	 * @return {@link #NONE} to ask the user, or {@link #ABORT},
+	 *     {@link #ONCE} or {@link #ALWAYS}
+	 */
+	int decide(X509Certificate[] chain, String hostname, int error);
+}
@@ -0,0 +1,304 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the certificate checks of an MTM instance into a corpus file,
+ * to be replayed offline with {@link MTMReplay}.
+ * <p>
+ * Only a sample of the checks is recorded, and recording stops when the
+ * file has reached its size limit. The file is appended to, each
+ * recorder session starts a new segment. Within a segment, every
+ * certificate is written only once and referenced by its index
+ * afterwards, so recurring chains take only a few bytes. A record cut off
+ * by a killed process is removed before the next segment is appended.
+ * <p>
+ * The checks are handed to a background thread, which does all file
+ * access, so recording never blocks a handshake. If the thread falls
+ * behind, further checks are dropped until it has caught up.
+ *
+ * @see MemorizingTrustManager#setRecorder(MTMRecorder)
+ */
+public class MTMRecorder {
+	private final static Logger LOGGER = Logger.getLogger(MTMRecorder.class.getName());
+
+	static final int MAGIC = 0x4d544d52; // "MTMR"
+	static final int VERSION = 1;
+
+	// record types
+	static final int TYPE_SEGMENT = 0;
+	static final int TYPE_CERT = 1;
+	static final int TYPE_CHECK = 2;
+	static final int TYPE_HOSTNAME = 3;
+
+	// checks waiting for the writer thread
+	static final int QUEUE_SIZE = 256;
+
+	/** A check waiting to be written. */
+	private static class Check {
+		final int type;
+		final long time;
+		final X509Certificate[] chain;
+		final String authType;
+		final boolean isServer;
+		final String hostname;
+		final boolean trusted;
+
+		Check(int type, X509Certificate[] chain, String authType, boolean isServer,
+				String hostname, boolean trusted) {
+			this.type = type;
+			this.time = System.currentTimeMillis();
+			this.chain = chain;
+			this.authType = authType;
+			this.isServer = isServer;
+			this.hostname = hostname;
+			this.trusted = trusted;
+		}
+	}
+
+	// tells the writer thread to close the file
+	private static final Check STOP = new Check(-1, null, null, false, null, false);
+
+	private final File file;
+	private final double sampleRate;
+	private final long maxBytes;
+	private final Random random = new Random();
+	private final BlockingQueue<Check> queue = new ArrayBlockingQueue<Check>(QUEUE_SIZE);
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean closed;
+	private volatile Thread writer;
+
+	// only accessed by the writer thread
+	// certificate -> index in the current segment
+	private final Map<X509Certificate, Integer> certs = new HashMap<X509Certificate, Integer>();
+	private DataOutputStream out;
+	private long size;
+
+	/**
+	 * Creates a recorder appending to a corpus file.
+	 *
+	 * @param file the corpus file
+	 * @param sampleRate fraction of the checks to record, between 0 and 1
+	 * @param maxBytes stop recording when the file has reached this size
+	 */
+	public MTMRecorder(File file, double sampleRate, long maxBytes) {
+		this.file = file;
+		this.sampleRate = sampleRate;
+		this.maxBytes = maxBytes;
+	}
+
+	/** Returns the corpus file. */
+	public File getFile() {
+		return file;
+	}
+
+	/** Returns the number of sampled checks dropped because the writer fell behind. */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+	// Random is thread-safe, no lock needed
+	private boolean sampled() {
+		return sampleRate >= 1 || random.nextDouble() < sampleRate;
+	}
+
+	// opens the file on first use and starts a new segment
+	private boolean open() throws IOException {
+		if (out != null)
+			return true;
+		size = file.length();
+		if (size >= maxBytes)
+			return false;
+		if (size > 0) {
+			// drop a record cut off by a killed process, or it would be
+			// followed by the new segment
+			long complete = MTMReplay.completeLength(file);
+			if (complete < size) {
+				LOGGER.log(Level.INFO, "MTMRecorder: truncating " + file + " to " + complete);
+				RandomAccessFile raf = new RandomAccessFile(file, "rw");
+				try {
+					raf.setLength(complete);
+				} finally {
+					raf.close();
+				}
+				size = complete;
+			}
+		}
+		out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+		if (size == 0) {
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+		}
+		out.writeByte(TYPE_SEGMENT);
+		return true;
+	}
+
+	private int certIndex(X509Certificate cert) throws IOException, CertificateEncodingException {
+		Integer index = certs.get(cert);
+		if (index != null)
+			return index;
+		byte[] der = cert.getEncoded();
+		out.writeByte(TYPE_CERT);
+		out.writeInt(der.length);
+		out.write(der);
+		index = certs.size();
+		certs.put(cert, index);
+		return index;
+	}
+
+	// returns false when recording has to stop
+	private boolean write(Check c) {
+		try {
+			if (!open()) {
+				LOGGER.log(Level.INFO, "MTMRecorder: " + file + " is full, not recording");
+				return false;
+			}
+			int before = out.size();
+			int[] indexes = new int[c.chain.length];
+			for (int i = 0; i < c.chain.length; i++)
+				indexes[i] = certIndex(c.chain[i]);
+			out.writeByte(c.type);
+			out.writeLong(c.time);
+			out.writeBoolean(c.isServer);
+			out.writeUTF((c.authType != null) ? c.authType : "");
+			out.writeUTF((c.hostname != null) ? c.hostname : "");
+			out.writeBoolean(c.trusted);
+			out.writeShort(indexes.length);
+			for (int index : indexes)
+				out.writeInt(index);
+			size += out.size() - before;
+			if (size >= maxBytes) {
+				LOGGER.log(Level.INFO, "MTMRecorder: " + file + " is full, stopping");
+				return false;
+			}
+			// flush once the queue is drained, not after every record
+			if (queue.isEmpty())
+				out.flush();
+			return true;
+		} catch (IOException | CertificateEncodingException e) {
+			LOGGER.log(Level.SEVERE, "MTMRecorder(" + file + ")", e);
+			return false;
+		}
+	}
+
+	private void closeFile() {
+		certs.clear();
+		if (out == null)
+			return;
+		try {
+			out.close();
+		} catch (IOException e) {
+			LOGGER.log(Level.FINE, "MTMRecorder.close(" + file + ")", e);
+		}
+		out = null;
+	}
+
+	private void writeQueued() {
+		try {
+			while (true) {
+				Check c = queue.take();
+				if (c == STOP || !write(c))
+					break;
+			}
+		} catch (InterruptedException e) {
+			// closed
+		} finally {
+			closed = true;
+			queue.clear();
+			closeFile();
+		}
+	}
+
+	private synchronized void startWriter() {
+		if (writer != null || closed)
+			return;
+		writer = new Thread("MTMRecorder") {
+			@Override
+			public void run() {
+				writeQueued();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	private void enqueue(Check c) {
+		if (writer == null)
+			startWriter();
+		if (!queue.offer(c))
+			dropped.incrementAndGet();
+	}
+
+	/** Records the result of a certificate chain check. */
+	void recordCheck(X509Certificate[] chain, String authType, boolean isServer,
+			String hostname, boolean trusted) {
+		if (!closed && chain != null && chain.length > 0 && sampled())
+			enqueue(new Check(TYPE_CHECK, chain, authType, isServer, hostname, trusted));
+	}
+
+	/** Records the result of a hostname verification. */
+	void recordHostname(X509Certificate[] chain, String hostname, boolean trusted) {
+		if (!closed && chain != null && chain.length > 0 && sampled())
+			enqueue(new Check(TYPE_HOSTNAME, chain, null, true, hostname, trusted));
+	}
+
+	/**
+	 * Stops recording and closes the file, after writing the checks that
+	 * are still queued.
+	 */
+	public void close() {
+		Thread w;
+		synchronized (this) {
+			closed = true;
+			w = writer;
+		}
+		if (w == null || w == Thread.currentThread())
+			return;
+		// make room for the stop marker, dropping the oldest check
+		while (!queue.offer(STOP))
+			queue.poll();
+		try {
+			w.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
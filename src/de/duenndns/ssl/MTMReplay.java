@@ -0,0 +1,374 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509TrustManager;
+
+/**
+ * Replays a corpus written by {@link MTMRecorder} against an MTM instance,
+ * to measure its throughput and to compare its verdicts with the
+ * recorded ones, e.g. after changing the trust store or the code.
+ * <p>
+ * The checks run on the calling thread. Set an {@link MTMPolicy} on the
+ * instance first, or rejected certificates will prompt the user. The
+ * instance should not have a recorder set, or the replay is recorded too.
+ * <p>
+ * A corpus can also be replayed without an Android Context against a
+ * plain X509TrustManager, e.g. on a desktop JVM with the app's key store
+ * as trust store. The class path needs the library's compiled classes,
+ * like the classes.jar inside the AAR built by Gradle:
+ *
+ * <pre>
+ *     java -cp classes.jar de.duenndns.ssl.MTMReplay corpus [rounds [truststore [password]]]
+ * </pre>
+ */
+public class MTMReplay {
+	private final static Logger LOGGER = Logger.getLogger(MTMReplay.class.getName());
+
+	/** A recorded check. */
+	static class Record {
+		int type;
+		long time;
+		boolean isServer;
+		String authType;
+		String hostname;
+		boolean trusted;
+		X509Certificate[] chain;
+	}
+
+	/** The outcome of a replay. */
+	public static class Result {
+		int checks;
+		int mismatches;
+		int nowTrusted;
+		int nowRejected;
+		long elapsedNanos;
+
+		/** Returns the number of replayed checks, over all rounds. */
+		public int getChecks() {
+			return checks;
+		}
+
+		/** Returns the number of checks with a different verdict than recorded. */
+		public int getMismatches() {
+			return mismatches;
+		}
+
+		/** Returns the number of checks rejected when recorded, but trusted now. */
+		public int getNowTrusted() {
+			return nowTrusted;
+		}
+
+		/** Returns the number of checks trusted when recorded, but rejected now. */
+		public int getNowRejected() {
+			return nowRejected;
+		}
+
+		/** Returns the time spent in the checks. */
+		public long getElapsedNanos() {
+			return elapsedNanos;
+		}
+
+		/** Returns the throughput of the checks. */
+		public double getChecksPerSecond() {
+			return (elapsedNanos > 0) ? checks * 1e9 / elapsedNanos : 0;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d checks in %.1f ms (%.0f/s), %d mismatches (%d now trusted, %d now rejected)",
+					checks, elapsedNanos / 1e6, getChecksPerSecond(),
+					mismatches, nowTrusted, nowRejected);
+		}
+	}
+
+	/** Counts the bytes consumed from a stream. */
+	private static class CountingInputStream extends FilterInputStream {
+		long count;
+
+		CountingInputStream(InputStream in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0)
+				count++;
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0)
+				count += n;
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			count += skipped;
+			return skipped;
+		}
+	}
+
+	/**
+	 * Reads all records of a corpus file. A truncated last record, e.g.
+	 * from a process that was killed while recording, is ignored.
+	 */
+	static List<Record> read(File corpus) throws IOException, CertificateException {
+		List<Record> records = new ArrayList<Record>();
+		parse(corpus, records);
+		return records;
+	}
+
+	/**
+	 * Returns the length of a corpus file up to the end of its last
+	 * complete record, 0 if even the header is incomplete.
+	 *
+	 * @throws IOException if the file is not a corpus or is corrupted
+	 */
+	static long completeLength(File corpus) throws IOException {
+		try {
+			return parse(corpus, null);
+		} catch (CertificateException e) {
+			throw new IOException(corpus + ": invalid certificate", e);
+		}
+	}
+
+	// reads the records, if a list is given, and returns the end of the last complete one
+	private static long parse(File corpus, List<Record> records) throws IOException, CertificateException {
+		CertificateFactory factory = CertificateFactory.getInstance("X.509");
+		// the certificates are only decoded if the records are needed
+		List<X509Certificate> certs = new ArrayList<X509Certificate>();
+		int certCount = 0;
+		CountingInputStream counter = new CountingInputStream(
+				new BufferedInputStream(new FileInputStream(corpus)));
+		DataInputStream in = new DataInputStream(counter);
+		long complete = 0;
+		try {
+			if (in.readInt() != MTMRecorder.MAGIC || in.readInt() != MTMRecorder.VERSION)
+				throw new IOException(corpus + " is not a MTM corpus");
+			complete = counter.count;
+			while (true) {
+				int type = in.read();
+				if (type < 0)
+					break;
+				switch (type) {
+				case MTMRecorder.TYPE_SEGMENT:
+					certs.clear();
+					certCount = 0;
+					break;
+				case MTMRecorder.TYPE_CERT:
+					byte[] der = new byte[in.readInt()];
+					in.readFully(der);
+					if (records != null)
+						certs.add((X509Certificate)factory.generateCertificate(
+									new ByteArrayInputStream(der)));
+					certCount++;
+					break;
+				case MTMRecorder.TYPE_CHECK:
+				case MTMRecorder.TYPE_HOSTNAME:
+					Record r = new Record();
+					r.type = type;
+					r.time = in.readLong();
+					r.isServer = in.readBoolean();
+					r.authType = in.readUTF();
+					r.hostname = in.readUTF();
+					r.trusted = in.readBoolean();
+					r.chain = new X509Certificate[in.readUnsignedShort()];
+					for (int i = 0; i < r.chain.length; i++) {
+						int index = in.readInt();
+						if (index < 0 || index >= certCount)
+							throw new IOException(corpus + ": unknown certificate " + index);
+						if (records != null)
+							r.chain[i] = certs.get(index);
+					}
+					if (records != null)
+						records.add(r);
+					break;
+				default:
+					throw new IOException(corpus + ": unknown record type " + type);
+				}
+				complete = counter.count;
+			}
+		} catch (EOFException e) {
+			LOGGER.log(Level.FINE, "MTMReplay: " + corpus + " is truncated");
+		} finally {
+			in.close();
+		}
+		return complete;
+	}
+
+	/** Returns the current verdict for a record. */
+	private interface Checker {
+		boolean check(Record r);
+	}
+
+	private static String hostname(Record r) {
+		return (r.hostname.length() > 0) ? r.hostname : null;
+	}
+
+	/**
+	 * Replays a corpus against an MTM instance.
+	 *
+	 * The corpus is read completely before the replay, so that only the
+	 * checks themselves are timed.
+	 *
+	 * @param mtm the instance to check the recorded chains with
+	 * @param corpus a corpus file written by {@link MTMRecorder}
+	 * @param rounds number of times to replay the corpus
+	 */
+	public static Result replay(final MemorizingTrustManager mtm, File corpus, int rounds)
+		throws IOException, CertificateException
+	{
+		return replay(new Checker() {
+			@Override
+			public boolean check(Record r) {
+				try {
+					if (r.type == MTMRecorder.TYPE_HOSTNAME)
+						mtm.checkHostnameTrusted(r.chain[0], hostname(r));
+					else
+						mtm.checkCertTrusted(r.chain, r.authType, r.isServer, hostname(r));
+					return true;
+				} catch (CertificateException e) {
+					return false;
+				}
+			}
+		}, corpus, rounds);
+	}
+
+	/**
+	 * Replays a corpus against a plain trust manager, without the
+	 * memorized decisions and the user interaction of MTM. Hostname
+	 * records are checked against the subject alternative names of the
+	 * server certificate.
+	 *
+	 * @param tm the trust manager to check the recorded chains with
+	 * @param corpus a corpus file written by {@link MTMRecorder}
+	 * @param rounds number of times to replay the corpus
+	 */
+	public static Result replay(final X509TrustManager tm, File corpus, int rounds)
+		throws IOException, CertificateException
+	{
+		return replay(new Checker() {
+			@Override
+			public boolean check(Record r) {
+				if (r.type == MTMRecorder.TYPE_HOSTNAME)
+					return hostname(r) != null
+						&& MTMCertificates.certMatchesHostname(r.chain[0], hostname(r));
+				try {
+					if (r.isServer)
+						tm.checkServerTrusted(r.chain, r.authType);
+					else
+						tm.checkClientTrusted(r.chain, r.authType);
+					return true;
+				} catch (CertificateException e) {
+					return false;
+				}
+			}
+		}, corpus, rounds);
+	}
+
+	private static Result replay(Checker checker, File corpus, int rounds)
+		throws IOException, CertificateException
+	{
+		List<Record> records = read(corpus);
+		Result result = new Result();
+		for (int round = 0; round < rounds; round++) {
+			for (Record r : records) {
+				long start = System.nanoTime();
+				boolean trusted = checker.check(r);
+				result.elapsedNanos += System.nanoTime() - start;
+				result.checks++;
+				if (trusted == r.trusted)
+					continue;
+				result.mismatches++;
+				if (trusted)
+					result.nowTrusted++;
+				else
+					result.nowRejected++;
+			}
+		}
+		LOGGER.log(Level.INFO, "MTMReplay(" + corpus + "): " + result);
+		return result;
+	}
+
+	/**
+	 * Replays a corpus against the default trust manager of the JVM, or
+	 * against a trust store file.
+	 *
+	 * @param args corpus file, number of rounds (default 1), trust store
+	 *	file and its password
+	 */
+	public static void main(String[] args) throws IOException, GeneralSecurityException {
+		if (args.length < 1) {
+			System.err.println("usage: MTMReplay <corpus> [rounds [truststore [password]]]");
+			System.exit(1);
+		}
+		int rounds = (args.length > 1) ? Integer.parseInt(args[1]) : 1;
+		KeyStore ks = null;
+		if (args.length > 2) {
+			ks = KeyStore.getInstance(KeyStore.getDefaultType());
+			char[] password = (args.length > 3) ? args[3].toCharArray() : null;
+			FileInputStream in = new FileInputStream(args[2]);
+			try {
+				ks.load(in, password);
+			} finally {
+				in.close();
+			}
+		}
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(ks);
+		X509TrustManager tm = null;
+		for (TrustManager t : tmf.getTrustManagers()) {
+			if (t instanceof X509TrustManager)
+				tm = (X509TrustManager)t;
+		}
+		System.out.println(replay(tm, new File(args[0]), rounds));
+	}
+}
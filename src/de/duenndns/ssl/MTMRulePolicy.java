@@ -0,0 +1,224 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.security.GeneralSecurityException;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * A {@link MTMPolicy} made of an ordered list of rules.
+ * <p>
+ * Each rule matches on any combination of hostname pattern, certificate
+ * fingerprint, issuer and error type. Issuer rules that accept certificates
+ * need the issuer certificate, to check the signatures of the chain. The
+ * decision of the first matching rule is returned, or the default decision
+ * if none matches. For headless
+ * operation, set the default decision to {@link MTMPolicy#ABORT}:
+ *
+ * <pre>
+ *     mtm.setPolicy(new MTMRulePolicy()
+ *         .addHostRule("*.example.com", MTMPolicy.ERROR_UNTRUSTED, MTMPolicy.ONCE)
+ *         .setDefaultDecision(MTMPolicy.ABORT));
+ * </pre>
+ */
+public class MTMRulePolicy implements MTMPolicy {
+	static class Rule {
+		final String hostPattern;
+		final String fingerprint;
+		final X500Principal issuer;
+		final X509Certificate issuerCert;
+		final int errors;
+		final int decision;
+
+		Rule(String hostPattern, String fingerprint, String issuer, int errors, int decision) {
+			this.hostPattern = (hostPattern != null) ? hostPattern.toLowerCase(Locale.US) : null;
+			this.fingerprint = (fingerprint != null) ? normalizeFingerprint(fingerprint) : null;
+			this.issuer = (issuer != null) ? new X500Principal(issuer) : null;
+			this.issuerCert = null;
+			this.errors = errors;
+			this.decision = decision;
+			// the names in a rejected chain are chosen by the server
+			if (issuer != null && decision != ABORT && decision != NONE)
+				throw new IllegalArgumentException("issuer names can only be used to abort, use an issuer certificate");
+		}
+
+		Rule(X509Certificate issuerCert, int errors, int decision) {
+			this.hostPattern = null;
+			this.fingerprint = null;
+			this.issuer = null;
+			this.issuerCert = issuerCert;
+			this.errors = errors;
+			this.decision = decision;
+		}
+
+		boolean matches(X509Certificate[] chain, String hostname, int error) {
+			if ((errors & error) == 0)
+				return false;
+			if (hostPattern != null && (hostname == null
+					|| !MTMCertificates.matchesDnsName(hostname.toLowerCase(Locale.US), hostPattern)))
+				return false;
+			if (fingerprint != null && !fingerprint.equals(
+					normalizeFingerprint(MTMCertificates.certHash(chain[0], "SHA-256"))))
+				return false;
+			if (issuer != null && !issuedBy(chain, issuer))
+				return false;
+			if (issuerCert != null && !chainsTo(chain, issuerCert))
+				return false;
+			return true;
+		}
+	}
+
+	private final List<Rule> rules = new CopyOnWriteArrayList<Rule>();
+	private volatile int defaultDecision = NONE;
+
+	static String normalizeFingerprint(String fingerprint) {
+		return fingerprint.replace(":", "").toLowerCase(Locale.US);
+	}
+
+	static boolean issuedBy(X509Certificate[] chain, X500Principal issuer) {
+		for (X509Certificate c : chain) {
+			if (issuer.equals(c.getIssuerX500Principal()))
+				return true;
+		}
+		return false;
+	}
+
+	private static boolean isSignedBy(X509Certificate cert, PublicKey key) {
+		try {
+			cert.verify(key);
+			return true;
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Checks if the chain is signed by the issuer certificate, following
+	 * the signatures from the server certificate up. Every certificate
+	 * acting as a signer must be a CA.
+	 */
+	static boolean chainsTo(X509Certificate[] chain, X509Certificate issuerCert) {
+		if (!MTMCertificates.isCA(issuerCert))
+			return false;
+		X500Principal subject = issuerCert.getSubjectX500Principal();
+		for (int i = 0; i < chain.length; i++) {
+			if (subject.equals(chain[i].getIssuerX500Principal())
+					&& isSignedBy(chain[i], issuerCert.getPublicKey()))
+				return true;
+			if (i + 1 == chain.length || !MTMCertificates.isCA(chain[i + 1])
+					|| !chain[i].getIssuerX500Principal().equals(chain[i + 1].getSubjectX500Principal())
+					|| !isSignedBy(chain[i], chain[i + 1].getPublicKey()))
+				return false;
+		}
+		return false;
+	}
+
+	/**
+	 * Adds a rule to the end of the list.
+	 *
+	 * @param hostPattern hostname, or wildcard pattern like <code>*.example.com</code>.
+	 *     Rules with a pattern never match when the hostname is not known.
+	 * @param fingerprint SHA-256 fingerprint of the server certificate, hex
+	 *     encoded, with or without colons
+	 * @param issuer distinguished name of an issuer in the chain. As the
+	 *     chain failed validation, anybody can name any issuer in it, so
+	 *     such rules can only abort.
+	 * @param errors mask of the MTMPolicy.ERROR_* types to match
+	 * @param decision decision to return if the rule matches
+	 * @return this policy
+	 * @throws IllegalArgumentException if the issuer is not a valid distinguished
+	 *     name, or is combined with a decision other than ABORT or NONE
+	 * @see #addIssuerRule(X509Certificate, int, int)
+	 */
+	public MTMRulePolicy addRule(String hostPattern, String fingerprint, String issuer,
+			int errors, int decision) {
+		rules.add(new Rule(hostPattern, fingerprint, issuer, errors, decision));
+		return this;
+	}
+
+	/** Adds a rule matching on the server's hostname. */
+	public MTMRulePolicy addHostRule(String hostPattern, int errors, int decision) {
+		return addRule(hostPattern, null, null, errors, decision);
+	}
+
+	/** Adds a rule matching on the server certificate's SHA-256 fingerprint. */
+	public MTMRulePolicy addFingerprintRule(String fingerprint, int errors, int decision) {
+		return addRule(null, fingerprint, null, errors, decision);
+	}
+
+	/**
+	 * Adds a rule matching on the name of an issuer in the certificate
+	 * chain. It can only abort, see {@link #addRule(String, String, String, int, int)}.
+	 */
+	public MTMRulePolicy addIssuerRule(String issuer, int errors, int decision) {
+		return addRule(null, null, issuer, errors, decision);
+	}
+
+	/**
+	 * Adds a rule matching chains that are signed by the issuer
+	 * certificate, e.g. an internal CA whose expired or otherwise invalid
+	 * certificates should be accepted.
+	 */
+	public MTMRulePolicy addIssuerRule(X509Certificate issuerCert, int errors, int decision) {
+		rules.add(new Rule(issuerCert, errors, decision));
+		return this;
+	}
+
+	/** Adds a rule matching on the error type only. */
+	public MTMRulePolicy addErrorRule(int errors, int decision) {
+		return addRule(null, null, null, errors, decision);
+	}
+
+	/**
+	 * Sets the decision returned if no rule matches.
+	 *
+	 * @param decision {@link MTMPolicy#NONE} (the default) to ask the user,
+	 *     or {@link MTMPolicy#ABORT} for headless operation
+	 * @return this policy
+	 */
+	public MTMRulePolicy setDefaultDecision(int decision) {
+		defaultDecision = decision;
+		return this;
+	}
+
+	/** Removes all rules. */
+	public void clear() {
+		rules.clear();
+	}
+
+	@Override
+	public int decide(X509Certificate[] chain, String hostname, int error) {
+		for (Rule r : rules) {
+			if (r.matches(chain, hostname, error))
+				return r.decision;
+		}
+		return defaultDecision;
+	}
+}
@@ -0,0 +1,266 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.security.KeyStoreException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import javax.security.auth.x500.X500Principal;
+
+/**
+ * Storage backend for the certificates memorized by MTM.
+ * <p>
+ * Each entry maps an alias to a certificate. Certificates accepted by the
+ * user are stored under their subject DN, certificates accepted for a
+ * mismatching hostname under that hostname.
+ * <p>
+ * Modifications are always wrapped in {@link #beginUpdate()} and
+ * {@link #endUpdate()}, which allows implementations to lock and persist
+ * the store. Implementations must be thread-safe.
+ *
+ * @see MTMKeyStoreFile
+ * @see MTMMemoryStore
+ */
+public abstract class MTMStore {
+	private volatile long revision;
+
+	/**
+	 * Loads the store content. Called once by MemorizingTrustManager before
+	 * the store is used.
+	 *
+	 * @throws KeyStoreException if the store could not be loaded.
+	 */
+	public abstract void load() throws KeyStoreException;
+
+	/**
+	 * Picks up modifications made outside of this instance, e.g. by other
+	 * processes. This is called before every certificate check and must
+	 * be cheap if nothing has changed.
+	 *
+	 * @return true if the store content has changed
+	 */
+	public boolean refresh() {
+		return false;
+	}
+
+	/**
+	 * Returns a counter that is increased whenever the content changes.
+	 * Views of a store, like {@link MTMPartition}, use it to detect
+	 * changes picked up by another view.
+	 */
+	public long getRevision() {
+		return revision;
+	}
+
+	/**
+	 * Increases the revision, see {@link #getRevision()}. Stores call
+	 * this after changing their content.
+	 */
+	protected void contentChanged() {
+		revision++;
+	}
+
+	/** Returns the aliases of all entries. */
+	public abstract List<String> aliases();
+
+	/** Returns the number of entries. */
+	public abstract int size();
+
+	/**
+	 * Returns the certificate stored under the given alias.
+	 *
+	 * @return the certificate or <tt>null</tt> if none found
+	 */
+	public abstract Certificate getCertificate(String alias);
+
+	/**
+	 * Looks up certificates by their fingerprint.
+	 *
+	 * @param fingerprint SHA-256 fingerprint as returned by {@link #fingerprint(Certificate)}
+	 * @return the aliases of all entries with that certificate, may be empty
+	 */
+	public abstract List<String> findAliases(String fingerprint);
+
+	/**
+	 * Looks up certificates by their public key. The default
+	 * implementation decodes all certificates, stores with an index
+	 * should override it.
+	 *
+	 * @param keyFingerprint SHA-256 fingerprint of the SubjectPublicKeyInfo,
+	 *	as returned by {@link #keyFingerprint(Certificate)}
+	 * @return the aliases of all entries with that key, may be empty
+	 */
+	public List<String> findAliasesByKey(String keyFingerprint) {
+		List<String> result = new ArrayList<String>();
+		for (String alias : aliases()) {
+			Certificate cert = getCertificate(alias);
+			if (cert != null && keyFingerprint.equals(keyFingerprint(cert)))
+				result.add(alias);
+		}
+		return result;
+	}
+
+	/** Returns whether a stored certificate has the given subject. */
+	public abstract boolean containsSubject(X500Principal subject);
+
+	/**
+	 * Looks up certificates by their subject. The default implementation
+	 * decodes all certificates, stores with an index should override it.
+	 *
+	 * @return the aliases of all entries with that subject, may be empty
+	 */
+	public List<String> findAliasesBySubject(X500Principal subject) {
+		List<String> result = new ArrayList<String>();
+		for (String alias : aliases()) {
+			Certificate cert = getCertificate(alias);
+			if (cert instanceof X509Certificate
+					&& subject.equals(((X509Certificate)cert).getSubjectX500Principal()))
+				result.add(alias);
+		}
+		return result;
+	}
+
+	/**
+	 * Starts a modification of the store.
+	 *
+	 * @throws KeyStoreException if the store could not be locked.
+	 */
+	public void beginUpdate() throws KeyStoreException {
+	}
+
+	/**
+	 * Stores a certificate, replacing an existing entry with the same alias.
+	 *
+	 * @throws KeyStoreException if the certificate could not be stored.
+	 */
+	public abstract void setCertificate(String alias, Certificate cert) throws KeyStoreException;
+
+	/**
+	 * Removes an entry.
+	 *
+	 * @throws KeyStoreException if the entry could not be removed.
+	 */
+	public abstract void deleteCertificate(String alias) throws KeyStoreException;
+
+	/**
+	 * Finishes a modification started with {@link #beginUpdate()} and
+	 * persists it. Always called, even if the modification failed.
+	 *
+	 * @throws KeyStoreException if the store could not be written.
+	 */
+	public void endUpdate() throws KeyStoreException {
+	}
+
+	/**
+	 * Describes a single entry. The default implementation decodes the
+	 * certificate, stores that keep the metadata around should override it.
+	 *
+	 * @return the entry metadata, or <tt>null</tt> if there is no such alias
+	 */
+	public MTMCertificateInfo getInfo(String alias) {
+		Certificate cert = getCertificate(alias);
+		if (cert == null)
+			return null;
+		X500Principal subject = null;
+		long notAfter = 0;
+		if (cert instanceof X509Certificate) {
+			subject = ((X509Certificate)cert).getSubjectX500Principal();
+			notAfter = ((X509Certificate)cert).getNotAfter().getTime();
+		}
+		return new MTMCertificateInfo(alias, fingerprint(cert), subject, notAfter,
+				Collections.singletonList(alias), Collections.<String>emptyList());
+	}
+
+	/**
+	 * Copies all entries of another store into this one, e.g. to migrate
+	 * to a different backend.
+	 *
+	 * @throws KeyStoreException if the entries could not be stored.
+	 */
+	public void importFrom(MTMStore source) throws KeyStoreException {
+		beginUpdate();
+		try {
+			for (String alias : source.aliases()) {
+				Certificate cert = source.getCertificate(alias);
+				if (cert != null)
+					setCertificate(alias, cert);
+			}
+		} finally {
+			endUpdate();
+		}
+	}
+
+	/**
+	 * Returns a view of a namespace inside this store.
+	 *
+	 * Partitions allow multi-account apps to keep separate decisions per
+	 * account in one shared store. The store is loaded by the first
+	 * partition and written by all of them, so it must not be loaded
+	 * again on its own.
+	 *
+	 * @param namespace the partition name, must not contain '/'
+	 */
+	public MTMStore partition(String namespace) {
+		return new MTMPartition(this, namespace);
+	}
+
+	/**
+	 * Calculates the SHA-256 fingerprint of the certificate's public key,
+	 * which stays the same when a certificate is renewed with the same key.
+	 *
+	 * @return the colon separated lower case hex fingerprint
+	 */
+	public static String keyFingerprint(Certificate cert) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			// getEncoded() of a public key is its SubjectPublicKeyInfo
+			return MTMCertificates.hexString(md.digest(cert.getPublicKey().getEncoded()));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Calculates the SHA-256 fingerprint used for lookups.
+	 *
+	 * @return the colon separated lower case hex fingerprint
+	 */
+	public static String fingerprint(Certificate cert) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			return MTMCertificates.hexString(md.digest(cert.getEncoded()));
+		} catch (CertificateEncodingException e) {
+			throw new IllegalArgumentException(e);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
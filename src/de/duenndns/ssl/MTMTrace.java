@@ -0,0 +1,378 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.util.Arrays;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import android.util.Log;
+
+/**
+ * Trace events of the certificate checks.
+ * <p>
+ * The checks run on every handshake, so their diagnostics must not cost
+ * anything when nobody listens. Events are identified by a constant and
+ * carry up to two object arguments and a number, which are only formatted
+ * by a sink that has the event's level enabled. With all sinks disabled,
+ * emitting an event allocates nothing.
+ * <p>
+ * By default, events go to java.util.logging, like the rest of MTM's log
+ * messages. {@link AndroidLogSink} writes directly to the Android log,
+ * {@link RingBufferSink} keeps the latest events in memory for a
+ * diagnostics dump.
+ */
+public final class MTMTrace {
+	/** Receives trace events. Implementations must be thread-safe. */
+	public interface Sink {
+		/** Checks if events of a level are wanted. This must be cheap. */
+		boolean isEnabled(Level level);
+
+		/**
+		 * Receives an enabled event. Use {@link MTMTrace#format} to get
+		 * the message.
+		 *
+		 * @param nanoTime the System.nanoTime() of the event
+		 */
+		void trace(long nanoTime, int event, Level level, Object a, Object b, long n);
+	}
+
+	// event IDs, index into MESSAGES and LEVELS
+	static final int CHECK_CERT		= 0;
+	static final int CERT_KNOWN		= 1;
+	static final int KEY_KNOWN		= 2;
+	static final int DEFAULT_TRYING		= 3;
+	static final int DEFAULT_FAILED		= 4;
+	static final int APP_TRYING		= 5;
+	static final int APP_FAILED		= 6;
+	static final int PARALLEL_TRYING	= 7;
+	static final int PARALLEL_SUCCEEDED	= 8;
+	static final int PARALLEL_FAILED	= 9;
+	static final int HOSTNAME_MATCHES	= 10;
+	static final int HOSTNAME_KNOWN		= 11;
+	static final int VERIFIER_START		= 12;
+	static final int VERIFIER_DEFAULT_OK	= 13;
+	static final int VERIFIER_ASKING	= 14;
+	static final int VERIFIER_DEFERRED	= 15;
+	static final int NO_PEER_HOST		= 16;
+	static final int POLICY_DECISION	= 17;
+	static final int RECENTLY_ABORTED	= 18;
+	static final int ALLOWED_ONCE		= 19;
+	static final int DECISION_DEFERRED	= 20;
+	static final int DECISION_WAITING	= 21;
+	static final int DECISION_FINISHED	= 22;
+	static final int PROMPT_REJECTED	= 23;
+	static final int PROMPT_ATTACHED	= 24;
+
+	// {a}, {b} and {n} are replaced with the arguments
+	private static final String[] MESSAGES = {
+		"checkCertTrusted: authType {a}, server {b}",
+		"checkCertTrusted: accepting cert already stored in keystore",
+		"checkCertTrusted: accepting cert with a key stored in keystore",
+		"checkCertTrusted: trying defaultTrustManager",
+		"checkCertTrusted: defaultTrustManager failed",
+		"checkCertTrusted: trying appTrustManager",
+		"checkCertTrusted: appTrustManager failed",
+		"checkCertTrusted: trying defaultTrustManager and appTrustManager in parallel",
+		"checkCertTrusted: {a}TrustManager succeeded first",
+		"checkCertTrusted: {a}TrustManager failed",
+		"checkHostnameTrusted: certificate matches {a}",
+		"certificate for {a} is in our keystore",
+		"hostname verifier for {a}, trying default verifier first",
+		"default verifier accepted {a}",
+		"server {a} provided wrong certificate, asking user",
+		"decision for {a} deferred: {n}",
+		"no peer hostname available, rejecting",
+		"policy decision for {a}: {n}",
+		"rejecting recently aborted {a}",
+		"accepting {a} allowed once by deferred decision",
+		"deferred decision {n} for {a}",
+		"waiting on decision {n}",
+		"finished wait on {n}: {a}",
+		"too many pending prompts, rejecting {a}",
+		"too many pending prompts, attaching {a} to decision {n}",
+	};
+
+	private static final Level[] LEVELS = {
+		Level.FINE, Level.INFO, Level.INFO, Level.FINE, Level.FINER, Level.FINE, Level.FINER,
+		Level.FINE, Level.FINE, Level.FINER, Level.FINE, Level.FINE, Level.FINE, Level.FINE,
+		Level.FINE, Level.FINE, Level.FINE, Level.FINE, Level.FINE, Level.FINE, Level.FINE,
+		Level.FINE, Level.FINE, Level.INFO, Level.FINE,
+	};
+
+	private static volatile Sink[] sinks = {
+		new JulSink(Logger.getLogger(MemorizingTrustManager.class.getName()))
+	};
+
+	private MTMTrace() {
+	}
+
+	/** Adds a sink for all MTM instances. */
+	public static synchronized void addSink(Sink sink) {
+		Sink[] s = new Sink[sinks.length + 1];
+		System.arraycopy(sinks, 0, s, 0, sinks.length);
+		s[sinks.length] = sink;
+		sinks = s;
+	}
+
+	/** Removes a sink, including the default java.util.logging one. */
+	public static synchronized void removeSink(Sink sink) {
+		for (int i = 0; i < sinks.length; i++) {
+			if (sinks[i] == sink) {
+				Sink[] s = new Sink[sinks.length - 1];
+				System.arraycopy(sinks, 0, s, 0, i);
+				System.arraycopy(sinks, i + 1, s, i, s.length - i);
+				sinks = s;
+				return;
+			}
+		}
+	}
+
+	/** Returns the installed sinks. */
+	public static Sink[] getSinks() {
+		return sinks.clone();
+	}
+
+	/** Checks if any sink wants an event. */
+	static boolean isEnabled(int event) {
+		Level level = LEVELS[event];
+		for (Sink s : sinks) {
+			if (s.isEnabled(level))
+				return true;
+		}
+		return false;
+	}
+
+	static void event(int event) {
+		event(event, null, null, 0);
+	}
+
+	static void event(int event, Object a) {
+		event(event, a, null, 0);
+	}
+
+	static void event(int event, Object a, Object b) {
+		event(event, a, b, 0);
+	}
+
+	static void event(int event, Object a, long n) {
+		event(event, a, null, n);
+	}
+
+	static void event(int event, Object a, Object b, long n) {
+		Level level = LEVELS[event];
+		Sink[] s = sinks;
+		long now = 0;
+		for (int i = 0; i < s.length; i++) {
+			if (!s[i].isEnabled(level))
+				continue;
+			if (now == 0)
+				now = System.nanoTime();
+			try {
+				s[i].trace(now, event, level, a, b, n);
+			} catch (RuntimeException e) {
+				// a broken sink must not break the handshake
+			}
+		}
+	}
+
+	/**
+	 * Formats the message of an event. Throwable arguments are not part
+	 * of the message, see {@link #getThrown(Object, Object)}.
+	 */
+	public static String format(int event, Object a, Object b, long n) {
+		String msg = MESSAGES[event];
+		StringBuilder sb = new StringBuilder(msg.length() + 32);
+		int i = 0;
+		while (i < msg.length()) {
+			int start = msg.indexOf('{', i);
+			if (start < 0 || start + 2 >= msg.length() || msg.charAt(start + 2) != '}') {
+				sb.append(msg, i, msg.length());
+				break;
+			}
+			sb.append(msg, i, start);
+			switch (msg.charAt(start + 1)) {
+			case 'a':
+				sb.append(a);
+				break;
+			case 'b':
+				sb.append(b);
+				break;
+			case 'n':
+				sb.append(n);
+				break;
+			default:
+				sb.append(msg, start, start + 3);
+			}
+			i = start + 3;
+		}
+		return sb.toString();
+	}
+
+	/** Returns the Throwable argument of an event, if any. */
+	public static Throwable getThrown(Object a, Object b) {
+		if (b instanceof Throwable)
+			return (Throwable)b;
+		if (a instanceof Throwable)
+			return (Throwable)a;
+		return null;
+	}
+
+	/** Passes events to a java.util.logging Logger. This is the default sink. */
+	public static class JulSink implements Sink {
+		private final Logger logger;
+
+		public JulSink(Logger logger) {
+			this.logger = logger;
+		}
+
+		@Override
+		public boolean isEnabled(Level level) {
+			return logger.isLoggable(level);
+		}
+
+		@Override
+		public void trace(long nanoTime, int event, Level level, Object a, Object b, long n) {
+			LogRecord record = new LogRecord(level, format(event, a, b, n));
+			record.setLoggerName(logger.getName());
+			record.setSourceClassName(MemorizingTrustManager.class.getName());
+			record.setThrown(getThrown(a, b));
+			logger.log(record);
+		}
+	}
+
+	/** Writes events directly to the Android log. */
+	public static class AndroidLogSink implements Sink {
+		private final String tag;
+		private final int minPriority;
+
+		/**
+		 * @param tag the log tag
+		 * @param minPriority the lowest priority to log, e.g. Log.DEBUG
+		 */
+		public AndroidLogSink(String tag, int minPriority) {
+			this.tag = tag;
+			this.minPriority = minPriority;
+		}
+
+		private static int priority(Level level) {
+			int value = level.intValue();
+			if (value >= Level.SEVERE.intValue())
+				return Log.ERROR;
+			else if (value >= Level.WARNING.intValue())
+				return Log.WARN;
+			else if (value >= Level.INFO.intValue())
+				return Log.INFO;
+			else if (value >= Level.FINE.intValue())
+				return Log.DEBUG;
+			return Log.VERBOSE;
+		}
+
+		@Override
+		public boolean isEnabled(Level level) {
+			return priority(level) >= minPriority;
+		}
+
+		@Override
+		public void trace(long nanoTime, int event, Level level, Object a, Object b, long n) {
+			String msg = format(event, a, b, n);
+			Throwable thrown = getThrown(a, b);
+			if (thrown != null)
+				msg = msg + '\n' + Log.getStackTraceString(thrown);
+			Log.println(priority(level), tag, msg);
+		}
+	}
+
+	/**
+	 * Keeps the latest events in memory, to be included in bug reports.
+	 * Events are only formatted when dumped.
+	 */
+	public static class RingBufferSink implements Sink {
+		private final Level level;
+		private final long[] times;
+		private final int[] events;
+		private final Object[] as;
+		private final Object[] bs;
+		private final long[] ns;
+		// total number of events recorded
+		private long count;
+
+		/**
+		 * @param capacity number of events to keep
+		 * @param level the lowest level to record
+		 */
+		public RingBufferSink(int capacity, Level level) {
+			this.level = level;
+			times = new long[capacity];
+			events = new int[capacity];
+			as = new Object[capacity];
+			bs = new Object[capacity];
+			ns = new long[capacity];
+		}
+
+		@Override
+		public boolean isEnabled(Level level) {
+			return level.intValue() >= this.level.intValue();
+		}
+
+		@Override
+		public synchronized void trace(long nanoTime, int event, Level level, Object a, Object b, long n) {
+			int i = (int)(count % times.length);
+			times[i] = nanoTime;
+			events[i] = event;
+			as[i] = a;
+			bs[i] = b;
+			ns[i] = n;
+			count++;
+		}
+
+		/** Removes all recorded events. */
+		public synchronized void clear() {
+			Arrays.fill(as, null);
+			Arrays.fill(bs, null);
+			count = 0;
+		}
+
+		/**
+		 * Formats the recorded events, oldest first. Each line starts
+		 * with the milliseconds before the dump.
+		 */
+		public synchronized String dump() {
+			StringBuilder sb = new StringBuilder();
+			long now = System.nanoTime();
+			long first = Math.max(0, count - times.length);
+			for (long c = first; c < count; c++) {
+				int i = (int)(c % times.length);
+				sb.append('-').append((now - times[i]) / 1000000).append("ms ")
+					.append(format(events[i], as[i], bs[i], ns[i]));
+				Throwable thrown = getThrown(as[i], bs[i]);
+				if (thrown != null)
+					sb.append(": ").append(thrown);
+				sb.append('\n');
+			}
+			return sb.toString();
+		}
+	}
+}
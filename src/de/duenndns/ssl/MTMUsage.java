@@ -0,0 +1,240 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Tracks when the entries of a store were last used, to evict the least
+ * recently used ones when the store is full.
+ * <p>
+ * A hit is only recorded if the last one is older than
+ * {@link #RESOLUTION_MILLIS}, so most hits are a map lookup. The times are
+ * written to a file next to the store at most every
+ * {@link #SAVE_INTERVAL_MILLIS}, in the background.
+ */
+class MTMUsage {
+	private final static Logger LOGGER = Logger.getLogger(MTMUsage.class.getName());
+
+	private static final int MAGIC = 0x4d544d55; // "MTMU"
+	private static final int VERSION = 1;
+
+	static final long RESOLUTION_MILLIS = 60 * 60 * 1000;
+	static final long SAVE_INTERVAL_MILLIS = 10 * 60 * 1000;
+
+	// null for stores that are not kept in a file
+	private final File file;
+	// entries without a recorded use count as used when tracking started
+	private final long since;
+	private final Map<String, Long> lastUse = new HashMap<String, Long>();
+	private final Object saveLock = new Object();
+	private boolean dirty;
+	private boolean saving;
+	private long lastSave;
+
+	MTMUsage(File file) {
+		this.file = file;
+		this.since = System.currentTimeMillis();
+		this.lastSave = since;
+		load();
+	}
+
+	/**
+	 * Returns the file for the usage times of a store, or <tt>null</tt> if
+	 * they can only be kept in memory.
+	 */
+	static File getUsageFile(MTMStore store) {
+		if (store instanceof MTMKeyStoreFile)
+			return new File(((MTMKeyStoreFile)store).getFile() + ".lastuse");
+		else if (store instanceof MTMIndexedStore)
+			return new File(((MTMIndexedStore)store).getFile() + ".lastuse");
+		else if (store instanceof MTMPartition) {
+			MTMPartition p = (MTMPartition)store;
+			File parent = getUsageFile(p.getParent());
+			if (parent != null)
+				return new File(parent + "." + p.getNamespace());
+		}
+		return null;
+	}
+
+	private synchronized void load() {
+		if (file == null)
+			return;
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			if (in.readInt() != MAGIC || in.readInt() != VERSION)
+				throw new IOException("unknown format");
+			for (int count = in.readInt(); count > 0; count--)
+				lastUse.put(in.readUTF(), in.readLong());
+		} catch (FileNotFoundException e) {
+			// nothing tracked yet
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "MTMUsage.load(" + file + ")", e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "MTMUsage.load(" + file + ")", e);
+				}
+			}
+		}
+	}
+
+	/** Records a use of the entries. */
+	void markUsed(Collection<String> aliases) {
+		long now = System.currentTimeMillis();
+		boolean save;
+		synchronized (this) {
+			for (String alias : aliases) {
+				Long last = lastUse.get(alias);
+				if (last != null && now - last < RESOLUTION_MILLIS)
+					continue;
+				lastUse.put(alias, now);
+				dirty = true;
+			}
+			save = dirty && !saving && now - lastSave >= SAVE_INTERVAL_MILLIS;
+		}
+		if (save)
+			saveInBackground();
+	}
+
+	/** Records a use of an entry. */
+	void markUsed(String alias) {
+		markUsed(Collections.singletonList(alias));
+	}
+
+	/**
+	 * Returns the entries to remove so that at most <tt>max</tt> are
+	 * left, least recently used first.
+	 *
+	 * @param aliases all entries of the store
+	 */
+	synchronized List<String> selectEvictions(Collection<String> aliases, int max) {
+		if (aliases.size() <= max)
+			return Collections.emptyList();
+		List<String> sorted = new ArrayList<String>(aliases);
+		Collections.sort(sorted, new Comparator<String>() {
+			public int compare(String a, String b) {
+				long ua = getLastUse(a), ub = getLastUse(b);
+				return (ua < ub) ? -1 : ((ua == ub) ? a.compareTo(b) : 1);
+			}
+		});
+		return sorted.subList(0, aliases.size() - max);
+	}
+
+	/** Returns when the entry was last used, in System.currentTimeMillis(). */
+	synchronized long getLastUse(String alias) {
+		Long last = lastUse.get(alias);
+		return (last != null) ? last : since;
+	}
+
+	/** Forgets the entries that are no longer in the store. */
+	synchronized void retain(Collection<String> aliases) {
+		Set<String> keep = new HashSet<String>(aliases);
+		if (lastUse.keySet().retainAll(keep))
+			dirty = true;
+	}
+
+	private void saveInBackground() {
+		synchronized (this) {
+			saving = true;
+		}
+		new Thread("MTM usage") {
+			public void run() {
+				save();
+			}
+		}.start();
+	}
+
+	/** Writes the usage times, if they have changed. */
+	void save() {
+		synchronized (saveLock) {
+			writeFile();
+		}
+	}
+
+	private void writeFile() {
+		Map<String, Long> snapshot;
+		synchronized (this) {
+			saving = false;
+			lastSave = System.currentTimeMillis();
+			if (!dirty || file == null)
+				return;
+			dirty = false;
+			snapshot = new HashMap<String, Long>(lastUse);
+		}
+		File tmpFile = new File(file + ".tmp");
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(snapshot.size());
+			for (Map.Entry<String, Long> e : snapshot.entrySet()) {
+				out.writeUTF(e.getKey());
+				out.writeLong(e.getValue());
+			}
+			out.close();
+			out = null;
+			if (!tmpFile.renameTo(file))
+				throw new IOException("rename failed");
+		} catch (IOException e) {
+			LOGGER.log(Level.WARNING, "MTMUsage.save(" + file + ")", e);
+			tmpFile.delete();
+			synchronized (this) {
+				dirty = true;
+			}
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "MTMUsage.save(" + file + ")", e);
+				}
+				tmpFile.delete();
+			}
+		}
+	}
+}
@@ -33,51 +33,109 @@ import android.content.DialogInterface;
 import android.content.DialogInterface.*;
 import android.content.Intent;
 import android.os.Bundle;
+import android.widget.CheckBox;
 
 public class MemorizingActivity extends Activity
 		implements OnClickListener,OnCancelListener {
 
 	private final static Logger LOGGER = Logger.getLogger(MemorizingActivity.class.getName());
 
+	// only accessed from the main thread
+	private static boolean resumed = false;
+
 	int decisionId;
+	// a decision restored from the intent of an earlier process, if shown
+	MTMDecision lateDecision;
 
 	AlertDialog dialog;
-	
+	CheckBox applyToSimilar;
+
+	/**
+	 * Returns whether a MemorizingActivity is in the foreground and will
+	 * process newly queued decisions by itself.
+	 */
+	static boolean isResumed() {
+		return resumed;
+	}
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
 		LOGGER.log(Level.FINE, "onCreate");
 		super.onCreate(savedInstanceState);
 	}
 
+	@Override
+	protected void onNewIntent(Intent intent) {
+		super.onNewIntent(intent);
+		setIntent(intent);
+	}
+
 	@Override
 	public void onResume() {
 		super.onResume();
+		resumed = true;
 		Intent i = getIntent();
-		decisionId = i.getIntExtra(MemorizingTrustManager.DECISION_INTENT_ID, MTMDecision.DECISION_INVALID);
-		int titleId = i.getIntExtra(MemorizingTrustManager.DECISION_TITLE_ID, R.string.mtm_security_risk);
-		String cert = i.getStringExtra(MemorizingTrustManager.DECISION_INTENT_CERT);
-		LOGGER.log(Level.FINE, "onResume with " + i.getExtras() + " decId=" + decisionId + " data: " + i.getData());
-		dialog = new AlertDialog.Builder(this).setTitle(titleId)
-			.setMessage(cert)
+		LOGGER.log(Level.FINE, "onResume with " + i.getExtras());
+		showNextDecision();
+	}
+
+	/**
+	 * Shows the oldest open decision, or finishes if there is none left.
+	 */
+	void showNextDecision() {
+		MTMDecision d = MemorizingTrustManager.nextOpenDecision();
+		lateDecision = null;
+		if (d == null) {
+			// the process might have been restarted while we were shown
+			d = MemorizingTrustManager.decisionFromIntent(this, getIntent());
+			lateDecision = d;
+		}
+		if (d == null) {
+			LOGGER.log(Level.FINE, "no more open decisions");
+			// new decisions need to start a new activity from now on
+			resumed = false;
+			MemorizingTrustManager.cancelNotification(this);
+			finish();
+			return;
+		}
+		decisionId = d.id;
+		int similar = MemorizingTrustManager.countSimilarDecisions(d);
+		LOGGER.log(Level.FINE, "showing decId=" + decisionId + ", " + similar + " similar");
+		AlertDialog.Builder builder = new AlertDialog.Builder(this).setTitle(d.titleId)
+			.setMessage(d.message)
 			.setPositiveButton(R.string.mtm_decision_always, this)
 			.setNeutralButton(R.string.mtm_decision_once, this)
 			.setNegativeButton(R.string.mtm_decision_abort, this)
-			.setOnCancelListener(this)
-			.create();
+			.setOnCancelListener(this);
+		if (similar > 0) {
+			applyToSimilar = new CheckBox(this);
+			applyToSimilar.setText(getResources().getQuantityString(
+					R.plurals.mtm_decision_apply_all, similar, similar));
+			builder.setView(applyToSimilar);
+		} else
+			applyToSimilar = null;
+		dialog = builder.create();
 		dialog.show();
 	}
 
 	@Override
 	protected void onPause() {
-		if (dialog.isShowing())
+		resumed = false;
+		if (dialog != null && dialog.isShowing())
 			dialog.dismiss();
 		super.onPause();
 	}
 
 	void sendDecision(int decision) {
-		LOGGER.log(Level.FINE, "Sending decision: " + decision);
-		MemorizingTrustManager.interactResult(decisionId, decision);
-		finish();
+		boolean all = applyToSimilar != null && applyToSimilar.isChecked();
+		LOGGER.log(Level.FINE, "Sending decision: " + decision + (all ? " to all similar" : ""));
+		if (lateDecision != null) {
+			// only answer it once
+			getIntent().removeExtra(MemorizingTrustManager.DECISION_INTENT_SESSION);
+			MemorizingTrustManager.lateDecisionResult(lateDecision, decision);
+		} else
+			MemorizingTrustManager.interactResult(decisionId, decision, all);
+		showNextDecision();
 	}
 
 	// react on AlertDialog button press
@@ -36,34 +36,70 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Context;
 import android.content.Intent;
-import android.net.Uri;
 import android.util.SparseArray;
 import android.os.Build;
 import android.os.Handler;
+import android.os.Looper;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.net.IDN;
+import java.net.Socket;
 import java.security.cert.*;
+import java.security.GeneralSecurityException;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
+import javax.net.ssl.ExtendedSSLSession;
 import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedTrustManager;
 import javax.net.ssl.X509TrustManager;
 
 /**
@@ -84,7 +120,41 @@ public class MemorizingTrustManager implements X509TrustManager {
 
 	private final static Logger LOGGER = Logger.getLogger(MemorizingTrustManager.class.getName());
 	final static String DECISION_TITLE_ID      = DECISION_INTENT + ".titleId";
+	// reference to a decision payload in app-private storage, see decisionFromIntent()
+	final static String DECISION_INTENT_SESSION = DECISION_INTENT + ".session";
+	final static String DECISION_INTENT_TOKEN   = DECISION_INTENT + ".token";
+	private final static String DECISION_DIR = "MTMDecisions";
+	// payloads of decisions nobody answered are removed after a week
+	private final static long DECISION_PAYLOAD_MILLIS = 7L * 24 * 60 * 60 * 1000;
+	// identifies this process, decision IDs are only valid within it
+	private final static long DECISION_SESSION = System.currentTimeMillis() ^ System.nanoTime();
 	private final static int NOTIFICATION_ID = 100509;
+	private final static int SEEN_CHAINS_MAX = 256;
+	// how long a deferred "once" decision is valid for the retry
+	private final static long ONCE_ALLOWANCE_MILLIS = 60 * 1000;
+
+	/** Only accept the exact certificates stored. */
+	public final static int PIN_CERTIFICATE = 0;
+	/** Also accept certificates with the public key of a stored certificate. */
+	public final static int PIN_KEY = 1;
+	/** Like {@link #PIN_KEY}, but the issuer must match the stored certificate's, too. */
+	public final static int PIN_KEY_AND_ISSUER = 2;
+
+	/** Reject certificates when too many prompts are pending. */
+	public final static int OVERFLOW_REJECT = 0;
+	/** Wait for a free prompt slot when too many prompts are pending. */
+	public final static int OVERFLOW_QUEUE = 1;
+	/** Wait for the answer to a pending prompt about the same certificate. */
+	public final static int OVERFLOW_ATTACH = 2;
+	// marker returned by reservePrompt()
+	private final static MTMDecision REJECTED = new MTMDecision(null, 0, null);
+
+	/** Always wait for the user's decision. Do not use on the main thread. */
+	public final static int DEFER_NEVER = 0;
+	/** Defer decisions requested on the main thread, wait on other threads. This is the default. */
+	public final static int DEFER_ON_MAIN_THREAD = 1;
+	/** Never wait for the user, always defer decisions. */
+	public final static int DEFER_ALWAYS = 2;
 
 	static String KEYSTORE_DIR = "KeyStore";
 	static String KEYSTORE_FILE = "KeyStore.bks";
@@ -95,12 +165,64 @@ public class MemorizingTrustManager implements X509TrustManager {
 	private static final String CHANNEL_ID = "memorizingtrustmanager";
 	private static int decisionId = 0;
 	private static SparseArray<MTMDecision> openDecisions = new SparseArray<MTMDecision>();
+	// a UI update for our open decisions is already posted to masterHandler
+	private boolean decisionUIPending = false;
+	// writes and deletes decision payloads in order, off the prompting thread
+	private static final ExecutorService payloadExecutor = newPayloadExecutor();
+	private static boolean payloadsPruned = false;
+	private static final SecureRandom payloadRandom = new SecureRandom();
 
 	Handler masterHandler;
-	private File keyStoreFile;
-	private KeyStore appKeyStore;
+	private MTMStore appStore;
 	private X509TrustManager defaultTrustManager;
-	private X509TrustManager appTrustManager;
+	// built on first use, so that lazy stores do not decode every certificate on load
+	private volatile X509TrustManager appTrustManager;
+	private final Object appTrustManagerLock = new Object();
+	// merged system and app CAs, rebuilt lazily after KeyStore updates
+	private final Object acceptedIssuersLock = new Object();
+	private X509Certificate[] acceptedIssuers;
+	// non-null while the trust managers are built in the background
+	private volatile CountDownLatch warmUpLatch;
+	private volatile MTMPolicy policy;
+	// recently aborted decisions and when they expire, in System.nanoTime()
+	private final Map<String, Long> abortedDecisions = new HashMap<String, Long>();
+	private volatile long abortCooldownMillis = 0;
+	// when to defer decisions instead of blocking, see setDeferredDecisions()
+	private volatile int deferMode = DEFER_ON_MAIN_THREAD;
+	private volatile MTMDecisionListener decisionListener;
+	// once-decisions of deferred prompts, valid for the retry, in System.nanoTime()
+	private final Map<String, Long> onceAllowances = new HashMap<String, Long>();
+	private volatile int pinningMode = PIN_CERTIFICATE;
+	private volatile MTMRecorder recorder;
+	// revision of appStore when the trust manager was last reloaded
+	private volatile long appStoreRevision;
+	// last use of the entries, only tracked if there is a cap, see setMaxEntries()
+	private volatile MTMUsage usage;
+	private volatile int maxEntries = 0;
+	// limit on pending prompts, see setPromptLimit(), guarded by promptLock
+	private final Object promptLock = new Object();
+	private int promptLimit = 0;
+	private int promptOverflow = OVERFLOW_REJECT;
+	private int promptQueueLimit = 0;
+	private int pendingPrompts = 0;
+	private int queuedPrompts = 0;
+	// non-null if validation runs in parallel, see setParallelValidation()
+	private volatile ExecutorService validationExecutor;
+	private long appTrustManagerMillis;
+	// shared per protocol, to keep their TLS session caches, guarded by sslContexts
+	private final Map<String, SSLContext> sslContexts = new HashMap<String, SSLContext>();
+	private final Map<String, SSLSocketFactory> sslSocketFactories = new HashMap<String, SSLSocketFactory>();
+	private HostnameVerifier hostnameVerifier;
+	// only the server certificate is stored, this keeps the full chains
+	// seen in handshakes for getRedundantCertificates(), by fingerprint
+	private final Map<String, X509Certificate[]> seenChains =
+		new LinkedHashMap<String, X509Certificate[]>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, X509Certificate[]> eldest) {
+				return size() > SEEN_CHAINS_MAX;
+			}
+		};
+	private long defaultTrustManagerMillis;
 
 	/** Creates an instance of the MemorizingTrustManager class that falls back to a custom TrustManager.
 	 *
@@ -116,8 +238,20 @@ public class MemorizingTrustManager implements X509TrustManager {
 	 * @param defaultTrustManager Delegate trust management to this TM. If null, the user must accept every certificate.
 	 */
 	public MemorizingTrustManager(Context m, X509TrustManager defaultTrustManager) {
-		init(m);
-		this.appTrustManager = getTrustManager(appKeyStore);
+		this(m, null, defaultTrustManager);
+	}
+
+	/** Creates an instance of the MemorizingTrustManager class with a custom storage backend.
+	 *
+	 * The context is used to display the dialog / notification and for
+	 * obtaining translated strings.
+	 *
+	 * @param m Context for the application.
+	 * @param store Storage for the memorized certificates. If null, the default KeyStore file is used.
+	 * @param defaultTrustManager Delegate trust management to this TM. If null, the user must accept every certificate.
+	 */
+	public MemorizingTrustManager(Context m, MTMStore store, X509TrustManager defaultTrustManager) {
+		init(m, true, store);
 		this.defaultTrustManager = defaultTrustManager;
 	}
 
@@ -134,44 +268,163 @@ public class MemorizingTrustManager implements X509TrustManager {
 	 * @param m Context for the application.
 	 */
 	public MemorizingTrustManager(Context m) {
-		init(m);
-		this.appTrustManager = getTrustManager(appKeyStore);
-		this.defaultTrustManager = getTrustManager(null);
+		this(m, false);
 	}
 
-	void init(Context m) {
+	/** Creates an instance of the MemorizingTrustManager class using the system X509TrustManager.
+	 *
+	 * Loading the system CA store is expensive on low-end devices. With
+	 * <code>warmUp</code> set, the app and system trust managers are
+	 * built in parallel on background threads, and the constructor
+	 * returns right after loading the app KeyStore. Certificate checks
+	 * wait for the warm-up to complete.
+	 *
+	 * @param m Context for the application.
+	 * @param warmUp build the trust managers in the background.
+	 */
+	public MemorizingTrustManager(Context m, boolean warmUp) {
+		this(m, null, warmUp);
+	}
+
+	/** Creates an instance of the MemorizingTrustManager class with a custom storage backend, using the system X509TrustManager.
+	 *
+	 * @param m Context for the application.
+	 * @param store Storage for the memorized certificates. If null, the default KeyStore file is used.
+	 * @param warmUp build the trust managers in the background.
+	 *
+	 * @see #MemorizingTrustManager(Context, boolean)
+	 */
+	public MemorizingTrustManager(Context m, MTMStore store, boolean warmUp) {
+		init(m, !warmUp, store);
+		if (warmUp) {
+			startWarmUp();
+		} else {
+			this.defaultTrustManager = getTrustManager(null);
+		}
+	}
+
+	void init(Context m, boolean createChannel, MTMStore store) {
 		master = m;
 		masterHandler = new Handler(m.getMainLooper());
 		notificationManager = (NotificationManager)master.getSystemService(Context.NOTIFICATION_SERVICE);
+		if (createChannel)
+			createNotificationChannel();
+		if (store == null)
+			store = new MTMKeyStoreFile(getDefaultKeyStoreFile(m));
+		appStore = store;
+		try {
+			appStore.load();
+		} catch (KeyStoreException e) {
+			LOGGER.log(Level.SEVERE, "init(" + appStore + ")", e);
+		}
+		appStoreRevision = appStore.getRevision();
+		pruneDecisionPayloads(m);
+	}
+
+	/**
+	 * Returns the location of the KeyStore file set with
+	 * {@link #setKeyStoreFile(String, String)}.
+	 *
+	 * @param m Application, Activity or Service
+	 */
+	public static File getDefaultKeyStoreFile(Context m) {
+		Application app;
+		if (m instanceof Application) {
+			app = (Application)m;
+		} else if (m instanceof Service) {
+			app = ((Service)m).getApplication();
+		} else if (m instanceof Activity) {
+			app = ((Activity)m).getApplication();
+		} else throw new ClassCastException("MemorizingTrustManager context must be either Activity or Service!");
+
+		String dirname, filename;
+		synchronized (MemorizingTrustManager.class) {
+			dirname = KEYSTORE_DIR;
+			filename = KEYSTORE_FILE;
+		}
+		return getKeyStoreFile(app, dirname, filename);
+	}
+
+	/**
+	 * Returns the location of a KeyStore file in the app's private
+	 * directory, <code>app_<i>dirname</i>/<i>filename</i></code>.
+	 *
+	 * Use this to give each MTM instance its own store, e.g.
+	 * <code>new MemorizingTrustManager(this, new MTMKeyStoreFile(getKeyStoreFile(this, "KeyStore", "account1.bks")), false)</code>.
+	 *
+	 * @param app the application context
+	 * @param dirname directory to store the KeyStore.
+	 * @param filename file name for the KeyStore.
+	 */
+	public static File getKeyStoreFile(Context app, String dirname, String filename) {
+		File dir = app.getDir(dirname, Context.MODE_PRIVATE);
+		return new File(dir + File.separator + filename);
+	}
+
+
+	void createNotificationChannel() {
 		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
 			NotificationChannel channel = notificationManager.getNotificationChannel(CHANNEL_ID);
 			if (channel == null) {
 				channel = new NotificationChannel(CHANNEL_ID,
-						m.getString(R.string.mtm_notification_channel),
+						master.getString(R.string.mtm_notification_channel),
 						NotificationManager.IMPORTANCE_DEFAULT);
-				channel.setDescription(m.getString(R.string.mtm_notification));
+				channel.setDescription(master.getString(R.string.mtm_notification));
 				channel.enableLights(true);
 				channel.enableVibration(true);
 				channel.setLockscreenVisibility(Notification.VISIBILITY_PUBLIC);
 				notificationManager.createNotificationChannel(channel);
 			}
 		}
-		Application app;
-		if (m instanceof Application) {
-			app = (Application)m;
-		} else if (m instanceof Service) {
-			app = ((Service)m).getApplication();
-		} else if (m instanceof Activity) {
-			app = ((Activity)m).getApplication();
-		} else throw new ClassCastException("MemorizingTrustManager context must be either Activity or Service!");
+	}
 
-		File dir = app.getDir(KEYSTORE_DIR, Context.MODE_PRIVATE);
-		keyStoreFile = new File(dir + File.separator + KEYSTORE_FILE);
+	private void startWarmUp() {
+		final CountDownLatch latch = new CountDownLatch(2);
+		final long start = System.nanoTime();
+		warmUpLatch = latch;
+		new Thread("MTM warm-up (app)") {
+			public void run() {
+				appTrustManager = createAppTrustManager();
+				appTrustManagerMillis = (System.nanoTime() - start) / 1000000;
+				createNotificationChannel();
+				latch.countDown();
+			}
+		}.start();
+		new Thread("MTM warm-up (system)") {
+			public void run() {
+				defaultTrustManager = getTrustManager(null);
+				defaultTrustManagerMillis = (System.nanoTime() - start) / 1000000;
+				latch.countDown();
+			}
+		}.start();
+	}
 
-		appKeyStore = loadAppKeyStore();
+	/**
+	 * Waits for the background warm-up to complete, if any.
+	 */
+	void awaitWarmUp() {
+		CountDownLatch latch = warmUpLatch;
+		if (latch == null)
+			return;
+		boolean interrupted = false;
+		while (true) {
+			try {
+				latch.await();
+				break;
+			} catch (InterruptedException e) {
+				// the trust managers are needed in any case
+				interrupted = true;
+			}
+		}
+		if (warmUpLatch != null) {
+			warmUpLatch = null;
+			LOGGER.log(Level.INFO, "warm-up finished: app trust manager after " + appTrustManagerMillis
+					+ "ms, system trust manager after " + defaultTrustManagerMillis + "ms");
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
 	}
 
-	
 	/**
 	 * Returns a X509TrustManager list containing a new instance of
 	 * TrustManagerFactory.
@@ -185,6 +438,11 @@ public class MemorizingTrustManager implements X509TrustManager {
 	 *         new java.security.SecureRandom());
 	 *     HttpsURLConnection.setDefaultSSLSocketFactory(sc.getSocketFactory());
 	 * </pre>
+	 *
+	 * Every call creates a new MTM instance. To share TLS sessions between
+	 * connections, keep one instance and use {@link #getSSLContext(String)}
+	 * instead.
+	 *
 	 * @param c Activity or Service to show the Dialog / Notification
 	 */
 	public static X509TrustManager[] getInstanceList(Context c) {
@@ -221,16 +479,209 @@ public class MemorizingTrustManager implements X509TrustManager {
 			foregroundAct = null;
 	}
 
+	/**
+	 * Sets a policy that decides about invalid certificates before the
+	 * user is asked.
+	 *
+	 * With a policy that never returns {@link MTMPolicy#NONE}, MTM will
+	 * not show any dialogs or notifications, which is what background
+	 * workers without UI need. See {@link MTMRulePolicy}.
+	 *
+	 * @param policy the policy, or <tt>null</tt> to always ask the user
+	 */
+	public void setPolicy(MTMPolicy policy) {
+		this.policy = policy;
+	}
+
+	/**
+	 * Sets how a server certificate is matched against the stored ones.
+	 *
+	 * By default, only the exact certificate accepted by the user is
+	 * trusted, so a renewed certificate needs a new decision even if the
+	 * server kept its key. With key pinning, a certificate is also
+	 * accepted if its SubjectPublicKeyInfo matches a stored certificate,
+	 * without asking the user or adding it to the store.
+	 *
+	 * @param mode {@link #PIN_CERTIFICATE} (the default), {@link #PIN_KEY}
+	 *	or {@link #PIN_KEY_AND_ISSUER}
+	 */
+	public void setPinningMode(int mode) {
+		this.pinningMode = mode;
+	}
+
+	/**
+	 * Limits the number of certificates in the store.
+	 *
+	 * Entries are memorized forever by default, and the store keeps
+	 * growing with servers that are never contacted again, which makes
+	 * loading and writing it slower. With a limit, MTM tracks when each
+	 * entry was last used, and removes the least recently used ones when
+	 * a new certificate is stored and the limit is exceeded. Entries used
+	 * before the limit was set count as used at that time.
+	 *
+	 * @param max maximum number of entries, 0 for no limit
+	 */
+	public synchronized void setMaxEntries(int max) {
+		maxEntries = max;
+		if (max <= 0) {
+			usage = null;
+			return;
+		}
+		if (usage == null)
+			usage = new MTMUsage(MTMUsage.getUsageFile(appStore));
+		evictEntries();
+	}
+
+	/**
+	 * Records a sample of the certificate checks and hostname verifications
+	 * with their results, to be replayed offline with {@link MTMReplay}.
+	 *
+	 * @param recorder the recorder, or null to stop recording
+	 */
+	public void setRecorder(MTMRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Enables validating against the app and the system CAs in parallel.
+	 *
+	 * By default, the system trust manager is tried first and the app
+	 * trust manager only after it failed. For chains that may be accepted
+	 * by either, both are started at the same time on a small thread pool
+	 * and the first success wins, so a handshake takes as long as the
+	 * slower of both instead of their sum. This only pays off on devices
+	 * with several cores.
+	 *
+	 * @param threads maximum number of validation threads, 0 to disable
+	 */
+	public synchronized void setParallelValidation(int threads) {
+		ExecutorService old = validationExecutor;
+		validationExecutor = null;
+		if (old != null)
+			old.shutdown();
+		if (threads <= 0)
+			return;
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+				30, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(4 * threads),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "MTM validation");
+						t.setDaemon(true);
+						return t;
+					}
+				},
+				// when saturated, validate on the connecting thread
+				new ThreadPoolExecutor.CallerRunsPolicy());
+		executor.allowCoreThreadTimeOut(true);
+		validationExecutor = executor;
+	}
+
+	/**
+	 * Limits the number of prompts waiting for the user.
+	 *
+	 * Without a limit, every connection to a misconfigured server blocks
+	 * a thread in a prompt of its own. When the limit is reached, a new
+	 * prompt is handled according to the overflow policy:
+	 * <ul>
+	 * <li>{@link #OVERFLOW_REJECT}: the certificate is rejected with the
+	 *	original validation error.</li>
+	 * <li>{@link #OVERFLOW_QUEUE}: up to <code>maxQueued</code> callers wait
+	 *	for a free slot, further ones are rejected.</li>
+	 * <li>{@link #OVERFLOW_ATTACH}: the caller waits for the answer to a
+	 *	pending prompt about the same problem, and is rejected if there
+	 *	is none.</li>
+	 * </ul>
+	 * Deferred decisions are always rejected on overflow.
+	 *
+	 * @param maxPending maximum number of pending prompts, 0 for no limit
+	 * @param overflow the overflow policy
+	 * @param maxQueued number of callers that may wait for a slot
+	 */
+	public void setPromptLimit(int maxPending, int overflow, int maxQueued) {
+		synchronized (promptLock) {
+			promptLimit = maxPending;
+			promptOverflow = overflow;
+			promptQueueLimit = maxQueued;
+			promptLock.notifyAll();
+		}
+	}
+
+	/** Returns the number of this instance's prompts waiting for the user. */
+	public int getPendingPromptCount() {
+		synchronized (promptLock) {
+			return pendingPrompts;
+		}
+	}
+
+	/** Returns the number of callers waiting for a free prompt slot. */
+	public int getQueuedPromptCount() {
+		synchronized (promptLock) {
+			return queuedPrompts;
+		}
+	}
+
+	/**
+	 * Sets when certificate checks fail fast instead of waiting for the user.
+	 *
+	 * A deferred check queues the decision as usual, but throws a
+	 * {@link MTMDeferredDecisionException} right away instead of
+	 * blocking the connecting thread. Once the user has decided, the
+	 * {@link MTMDecisionListener} is notified and the app can retry the
+	 * connection. A "once" decision is valid for a single retry within
+	 * a minute, an "always" decision stores the certificate as usual.
+	 * <p>
+	 * Waiting on the main thread would dead-lock, so decisions requested
+	 * there are deferred by default.
+	 *
+	 * @param mode one of {@link #DEFER_NEVER}, {@link #DEFER_ON_MAIN_THREAD}
+	 *	and {@link #DEFER_ALWAYS}
+	 */
+	public void setDeferredDecisions(int mode) {
+		this.deferMode = mode;
+	}
+
+	/**
+	 * Sets the listener for the results of deferred decisions.
+	 *
+	 * @param listener the listener, or <tt>null</tt>
+	 * @see #setDeferredDecisions(int)
+	 */
+	public void setDecisionListener(MTMDecisionListener listener) {
+		this.decisionListener = listener;
+	}
+
+	/**
+	 * Sets how long a certificate stays rejected after the user aborted.
+	 *
+	 * Clients that automatically reconnect would otherwise ask the user
+	 * again right after an "Abort". During the cooldown, connections
+	 * with the same certificate chain (or certificate and hostname, for
+	 * mismatches) are rejected without asking or validating. Any change
+	 * to the KeyStore ends all cooldowns.
+	 *
+	 * @param millis cooldown period in milliseconds, 0 (the default) to disable
+	 */
+	public void setAbortCooldown(long millis) {
+		abortCooldownMillis = millis;
+		if (millis <= 0)
+			clearAbortedDecisions();
+	}
+
 	/**
 	 * Changes the path for the KeyStore file.
 	 *
 	 * The actual filename relative to the app's directory will be
 	 * <code>app_<i>dirname</i>/<i>filename</i></code>.
 	 *
+	 * This is a global setting that only affects instances created
+	 * afterwards. To configure the location per instance, pass an
+	 * {@link MTMKeyStoreFile} to the constructor instead, see
+	 * {@link #getKeyStoreFile(Context, String, String)}.
+	 *
 	 * @param dirname directory to store the KeyStore.
 	 * @param filename file name for the KeyStore.
 	 */
-	public static void setKeyStoreFile(String dirname, String filename) {
+	public static synchronized void setKeyStoreFile(String dirname, String filename) {
 		KEYSTORE_DIR = dirname;
 		KEYSTORE_FILE = filename;
 	}
@@ -241,12 +692,8 @@ public class MemorizingTrustManager implements X509TrustManager {
 	 * @return an {@link Enumeration} of all certificates
 	 */
 	public Enumeration<String> getCertificates() {
-		try {
-			return appKeyStore.aliases();
-		} catch (KeyStoreException e) {
-			// this should never happen, however...
-			throw new RuntimeException(e);
-		}
+		syncAppKeyStore();
+		return Collections.enumeration(appStore.aliases());
 	}
 
 	/**
@@ -257,12 +704,90 @@ public class MemorizingTrustManager implements X509TrustManager {
 	 * @return the certificate associated with the alias or <tt>null</tt> if none found.
 	 */
 	public Certificate getCertificate(String alias) {
-		try {
-			return appKeyStore.getCertificate(alias);
-		} catch (KeyStoreException e) {
-			// this should never happen, however...
-			throw new RuntimeException(e);
+		syncAppKeyStore();
+		return appStore.getCertificate(alias);
+	}
+
+	/**
+	 * Collects the metadata of all stored certificates, one record per
+	 * certificate with all aliases it is stored under.
+	 */
+	private List<MTMCertificateInfo> collectCertificateInfos() {
+		syncAppKeyStore();
+		Map<String, List<MTMCertificateInfo>> byFingerprint = new LinkedHashMap<String, List<MTMCertificateInfo>>();
+		for (String alias : appStore.aliases()) {
+			MTMCertificateInfo info = appStore.getInfo(alias);
+			if (info == null)
+				continue;
+			List<MTMCertificateInfo> group = byFingerprint.get(info.getFingerprint());
+			if (group == null) {
+				group = new ArrayList<MTMCertificateInfo>(1);
+				byFingerprint.put(info.getFingerprint(), group);
+			}
+			group.add(info);
+		}
+		List<MTMCertificateInfo> result = new ArrayList<MTMCertificateInfo>(byFingerprint.size());
+		for (List<MTMCertificateInfo> group : byFingerprint.values()) {
+			MTMCertificateInfo primary = group.get(0);
+			List<String> aliases = new ArrayList<String>(group.size());
+			List<String> hostnames = new ArrayList<String>();
+			for (MTMCertificateInfo info : group) {
+				aliases.add(info.getAlias());
+				// certificates are stored under their subject DN, hostnames have no '='
+				if (info.getAlias().indexOf('=') < 0)
+					hostnames.add(info.getAlias());
+				else if (primary.getAlias().indexOf('=') < 0)
+					primary = info;
+			}
+			result.add(new MTMCertificateInfo(primary.getAlias(), primary.getFingerprint(),
+					primary.getSubject(), primary.getNotAfter().getTime(), aliases, hostnames));
+		}
+		return result;
+	}
+
+	/**
+	 * Get a page of the stored certificates with their metadata.
+	 *
+	 * The metadata is taken from the store index where possible, so this
+	 * does not need to decode every certificate.
+	 *
+	 * @param filter only return certificates whose alias, subject,
+	 *	fingerprint or hostnames contain this string, ignoring case. May
+	 *	be <tt>null</tt>.
+	 * @param order sort order, e.g. {@link MTMCertificateInfo#BY_EXPIRY}.
+	 *	If <tt>null</tt>, the store order is kept.
+	 * @param offset number of matching certificates to skip.
+	 * @param limit maximum number of certificates to return.
+	 *
+	 * @return the matching certificates
+	 */
+	public List<MTMCertificateInfo> listCertificates(String filter, Comparator<MTMCertificateInfo> order,
+			int offset, int limit) {
+		List<MTMCertificateInfo> result = new ArrayList<MTMCertificateInfo>();
+		for (MTMCertificateInfo info : collectCertificateInfos()) {
+			if (info.matches(filter))
+				result.add(info);
 		}
+		if (order != null)
+			Collections.sort(result, order);
+		int from = Math.min(Math.max(offset, 0), result.size());
+		int to = Math.min(from + Math.max(limit, 0), result.size());
+		return new ArrayList<MTMCertificateInfo>(result.subList(from, to));
+	}
+
+	/**
+	 * Count the stored certificates matching a filter, for paging through
+	 * {@link #listCertificates(String, Comparator, int, int)}.
+	 *
+	 * @param filter the filter string, or <tt>null</tt> to count all.
+	 */
+	public int countCertificates(String filter) {
+		int count = 0;
+		for (MTMCertificateInfo info : collectCertificateInfos()) {
+			if (info.matches(filter))
+				count++;
+		}
+		return count;
 	}
 
 	/**
@@ -279,8 +804,126 @@ public class MemorizingTrustManager implements X509TrustManager {
 	 * @throws KeyStoreException if the certificate could not be deleted.
 	 */
 	public void deleteCertificate(String alias) throws KeyStoreException {
-		appKeyStore.deleteEntry(alias);
-		keyStoreUpdated();
+		deleteCertificates(Collections.singletonList(alias));
+	}
+
+	/**
+	 * Removes the given certificates from MTMs key store.
+	 *
+	 * The KeyStore file is only written once for all certificates.
+	 *
+	 * @param aliases the certificates' aliases as returned by {@link #getCertificates()}.
+	 *
+	 * @throws KeyStoreException if a certificate could not be deleted.
+	 */
+	public void deleteCertificates(Collection<String> aliases) throws KeyStoreException {
+		appStore.beginUpdate();
+		try {
+			for (String alias : aliases)
+				appStore.deleteCertificate(alias);
+		} finally {
+			keyStoreUpdated();
+		}
+	}
+
+	/**
+	 * Get a list of all stored certificates that have expired.
+	 *
+	 * @return the aliases of the expired certificates
+	 */
+	public List<String> getExpiredCertificates() {
+		syncAppKeyStore();
+		long now = System.currentTimeMillis();
+		List<String> result = new ArrayList<String>();
+		for (String alias : appStore.aliases()) {
+			MTMCertificateInfo info = appStore.getInfo(alias);
+			if (info != null && info.isExpired(now))
+				result.add(alias);
+		}
+		return result;
+	}
+
+	// the authType matching the certificate's key, for checkServerTrusted()
+	private static String keyAuthType(X509Certificate cert) {
+		String algorithm = cert.getPublicKey().getAlgorithm();
+		if ("RSA".equals(algorithm))
+			return "RSA";
+		else if ("EC".equals(algorithm))
+			return "ECDHE_ECDSA";
+		else if ("DSA".equals(algorithm))
+			return "DHE_DSS";
+		return "UNKNOWN";
+	}
+
+	/**
+	 * Get a list of all stored certificates that are now accepted by the
+	 * default trust manager anyway.
+	 *
+	 * Certificates stored for a mismatching hostname are only reported if
+	 * they now also match that hostname. This performs a full validation
+	 * of every stored certificate and should not be called from the UI
+	 * thread.
+	 * <p>
+	 * Most servers send intermediate certificates that are not stored. The
+	 * chains of the last 256 stored certificates seen
+	 * in handshakes by this instance are used for the validation. Other
+	 * certificates are validated alone, which only succeeds if they were
+	 * directly issued by a trusted root.
+	 *
+	 * @return the aliases of the certificates that are no longer needed
+	 */
+	public List<String> getRedundantCertificates() {
+		awaitWarmUp();
+		List<String> result = new ArrayList<String>();
+		if (defaultTrustManager == null)
+			return result;
+		for (String alias : Collections.list(getCertificates())) {
+			Certificate cert = getCertificate(alias);
+			if (!(cert instanceof X509Certificate))
+				continue;
+			X509Certificate x509 = (X509Certificate)cert;
+			// certificates are stored under their subject DN, hostnames have no '='
+			if (alias.indexOf('=') < 0 && !MTMCertificates.certMatchesHostname(x509, alias))
+				continue;
+			X509Certificate[] chain;
+			synchronized (seenChains) {
+				chain = seenChains.get(MTMCertificates.certHash(x509, "SHA-256"));
+			}
+			if (chain == null)
+				chain = new X509Certificate[] { x509 };
+			try {
+				defaultTrustManager.checkServerTrusted(chain, keyAuthType(x509));
+				result.add(alias);
+			} catch (CertificateException e) {
+				LOGGER.log(Level.FINER, "getRedundantCertificates: " + alias + " still needed", e);
+			} catch (RuntimeException e) {
+				LOGGER.log(Level.FINE, "getRedundantCertificates: " + alias, e);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Finds stored certificates that are expired or that the default
+	 * trust manager accepts by now, and optionally removes them.
+	 *
+	 * This is meant to be run from time to time in the background, to
+	 * keep the KeyStore from growing forever. All removals are written to
+	 * the KeyStore file in a single step.
+	 *
+	 * @param remove delete the found certificates from the KeyStore
+	 * @return the aliases of the expired and redundant certificates
+	 *
+	 * @throws KeyStoreException if a certificate could not be deleted.
+	 */
+	public List<String> purgeCertificates(boolean remove) throws KeyStoreException {
+		LinkedHashSet<String> obsolete = new LinkedHashSet<String>(getExpiredCertificates());
+		obsolete.addAll(getRedundantCertificates());
+		List<String> result = new ArrayList<String>(obsolete);
+		LOGGER.log(Level.INFO, "purgeCertificates: " + result.size() + " obsolete entries" + (remove ? ", removing" : ""));
+		if (remove && !result.isEmpty())
+			deleteCertificates(result);
+		return result;
 	}
 
 	/**
@@ -309,7 +952,90 @@ public class MemorizingTrustManager implements X509TrustManager {
 		
 		return new MemorizingHostnameVerifier(defaultVerifier);
 	}
+
+	/**
+	 * Returns a trust manager that also verifies the server's hostname
+	 * during the handshake.
+	 *
+	 * <p>The returned trust manager is an {@link X509ExtendedTrustManager}
+	 * bound to this MTM instance. In addition to the certificate chain, it
+	 * checks the peer hostname of {@link SSLSocket} and {@link SSLEngine}
+	 * connections that have an endpoint identification algorithm set
+	 * (see {@link SSLParameters#setEndpointIdentificationAlgorithm(String)}),
+	 * using the same rules as {@link #wrapHostnameVerifier(HostnameVerifier)}.
+	 * No separate hostname verifier pass is needed for such connections,
+	 * which makes it usable with non-blocking SSLEngine clients.</p>
+	 *
+	 * <p>X509ExtendedTrustManager is only available on Android 7.0 and
+	 * newer. On older versions, this MTM instance is returned.</p>
+	 *
+	 * @return a trust manager suitable for SSLContext.init()
+	 */
+	public X509TrustManager getExtendedTrustManager() {
+		if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N)
+			return new MemorizingExtendedTrustManager();
+		return this;
+	}
 	
+	/**
+	 * Returns an SSLContext using this MTM instance as trust manager.
+	 *
+	 * <p>The context is created once per protocol and then reused, so all
+	 * connections made with it share the same TLS session cache and can
+	 * resume sessions. Creating a new SSLContext per connection forces a
+	 * full handshake every time.</p>
+	 *
+	 * <p>On Android 7.0 and newer, the context uses the
+	 * {@link #getExtendedTrustManager() extended trust manager}.</p>
+	 *
+	 * @param protocol the SSLContext protocol, e.g. "TLS"
+	 * @return the shared SSLContext for this protocol
+	 *
+	 * @throws GeneralSecurityException if the protocol is not supported.
+	 */
+	public SSLContext getSSLContext(String protocol) throws GeneralSecurityException {
+		synchronized (sslContexts) {
+			SSLContext sc = sslContexts.get(protocol);
+			if (sc == null) {
+				sc = SSLContext.getInstance(protocol);
+				sc.init(null, new X509TrustManager[] { getExtendedTrustManager() },
+						new java.security.SecureRandom());
+				sslContexts.put(protocol, sc);
+			}
+			return sc;
+		}
+	}
+
+	/**
+	 * Returns the socket factory of the shared SSLContext for a protocol.
+	 *
+	 * @see #getSSLContext(String)
+	 */
+	public SSLSocketFactory getSSLSocketFactory(String protocol) throws GeneralSecurityException {
+		synchronized (sslContexts) {
+			SSLSocketFactory sf = sslSocketFactories.get(protocol);
+			if (sf == null) {
+				sf = getSSLContext(protocol).getSocketFactory();
+				sslSocketFactories.put(protocol, sf);
+			}
+			return sf;
+		}
+	}
+
+	/**
+	 * Returns a shared hostname verifier wrapping the platform's default
+	 * HttpsURLConnection verifier.
+	 *
+	 * @see #wrapHostnameVerifier(HostnameVerifier)
+	 */
+	public HostnameVerifier getHostnameVerifier() {
+		synchronized (sslContexts) {
+			if (hostnameVerifier == null)
+				hostnameVerifier = wrapHostnameVerifier(HttpsURLConnection.getDefaultHostnameVerifier());
+			return hostnameVerifier;
+		}
+	}
+
 	X509TrustManager getTrustManager(KeyStore ks) {
 		try {
 			TrustManagerFactory tmf = TrustManagerFactory.getInstance("X509");
@@ -328,79 +1054,237 @@ public class MemorizingTrustManager implements X509TrustManager {
 		return null;
 	}
 
-	KeyStore loadAppKeyStore() {
-		KeyStore ks;
+	/**
+	 * Picks up changes made to the store by other processes. Changes can
+	 * also be picked up by the store outside of refresh(), e.g. when it
+	 * decodes a certificate, so the revision is compared as well.
+	 */
+	void syncAppKeyStore() {
+		if (appStore.refresh() || appStore.getRevision() != appStoreRevision)
+			reloadAppTrustManager();
+	}
+
+	void storeCert(String alias, Certificate cert) {
 		try {
-			ks = KeyStore.getInstance(KeyStore.getDefaultType());
+			appStore.beginUpdate();
+			try {
+				appStore.setCertificate(alias, cert);
+			} finally {
+				keyStoreUpdated();
+			}
 		} catch (KeyStoreException e) {
-			LOGGER.log(Level.SEVERE, "getAppKeyStore()", e);
-			return null;
+			LOGGER.log(Level.SEVERE, "storeCert(" + cert + ")", e);
+			return;
 		}
-		try {
-			ks.load(null, null);
-		} catch (NoSuchAlgorithmException | CertificateException | IOException e) {
-			LOGGER.log(Level.SEVERE, "getAppKeyStore(" + keyStoreFile + ")", e);
+		MTMUsage u = usage;
+		if (u != null) {
+			u.markUsed(alias);
+			evictEntries();
 		}
-		InputStream is = null;
-		try {
-			is = new java.io.FileInputStream(keyStoreFile);
-			ks.load(is, "MTM".toCharArray());
-		} catch (NoSuchAlgorithmException | CertificateException | IOException e) {
-			LOGGER.log(Level.INFO, "getAppKeyStore(" + keyStoreFile + ") - exception loading file key store", e);
-		} finally {
-			if (is != null) {
-				try {
-					is.close();
-				} catch (IOException e) {
-					LOGGER.log(Level.FINE, "getAppKeyStore(" + keyStoreFile + ") - exception closing file key store input stream", e);
-				}
+	}
+
+	/**
+	 * Removes the least recently used entries if there are more than
+	 * allowed by {@link #setMaxEntries(int)}.
+	 */
+	void evictEntries() {
+		MTMUsage u = usage;
+		int max = maxEntries;
+		if (u == null || max <= 0)
+			return;
+		List<String> evicted = new ArrayList<String>(u.selectEvictions(appStore.aliases(), max));
+		if (!evicted.isEmpty()) {
+			LOGGER.log(Level.INFO, "evicting " + evicted.size() + " least recently used certificates");
+			try {
+				deleteCertificates(evicted);
+			} catch (KeyStoreException e) {
+				LOGGER.log(Level.SEVERE, "evictEntries()", e);
 			}
 		}
-		return ks;
+		u.retain(appStore.aliases());
+		u.save();
 	}
 
-	void storeCert(String alias, Certificate cert) {
-		try {
-			appKeyStore.setCertificateEntry(alias, cert);
-		} catch (KeyStoreException e) {
-			LOGGER.log(Level.SEVERE, "storeCert(" + cert + ")", e);
+	private void markUsed(Collection<String> aliases) {
+		MTMUsage u = usage;
+		if (u != null)
+			u.markUsed(aliases);
+	}
+
+	// the stored CAs that anchored an accepted chain were used
+	private void markAnchorsUsed(X509Certificate[] chain) {
+		MTMUsage u = usage;
+		if (u == null)
 			return;
-		}		
-		keyStoreUpdated();
+		for (X509Certificate c : chain) {
+			u.markUsed(appStore.findAliasesBySubject(c.getSubjectX500Principal()));
+			u.markUsed(appStore.findAliasesBySubject(c.getIssuerX500Principal()));
+		}
 	}
 	
 	void storeCert(X509Certificate cert) {
 		storeCert(cert.getSubjectDN().toString(), cert);
 	}
 
-	void keyStoreUpdated() {
-		// reload appTrustManager
-		appTrustManager = getTrustManager(appKeyStore);
-
-		// store KeyStore to file
-		java.io.FileOutputStream fos = null;
+	/**
+	 * Creates a trust manager for the certificates in the app store.
+	 */
+	X509TrustManager createAppTrustManager() {
+		KeyStore ks;
 		try {
-			fos = new java.io.FileOutputStream(keyStoreFile);
-			appKeyStore.store(fos, "MTM".toCharArray());
+			ks = KeyStore.getInstance(KeyStore.getDefaultType());
+			ks.load(null, null);
+			for (String alias : appStore.aliases()) {
+				Certificate cert = appStore.getCertificate(alias);
+				if (cert != null)
+					ks.setCertificateEntry(alias, cert);
+			}
 		} catch (Exception e) {
-			LOGGER.log(Level.SEVERE, "storeCert(" + keyStoreFile + ")", e);
+			LOGGER.log(Level.SEVERE, "createAppTrustManager()", e);
+			return null;
+		}
+		return getTrustManager(ks);
+	}
+
+	/**
+	 * Returns the trust manager for the app store, building it if needed.
+	 */
+	X509TrustManager getAppTrustManager() {
+		X509TrustManager tm = appTrustManager;
+		if (tm != null)
+			return tm;
+		synchronized (appTrustManagerLock) {
+			if (appTrustManager == null)
+				appTrustManager = createAppTrustManager();
+			return appTrustManager;
+		}
+	}
+
+	void reloadAppTrustManager() {
+		awaitWarmUp();
+		appStoreRevision = appStore.getRevision();
+		synchronized (appTrustManagerLock) {
+			appTrustManager = null;
+		}
+		clearAbortedDecisions();
+		synchronized (acceptedIssuersLock) {
+			acceptedIssuers = null;
+		}
+	}
+
+	/**
+	 * Finishes a store update started with beginUpdate() and reloads
+	 * appTrustManager.
+	 */
+	void keyStoreUpdated() throws KeyStoreException {
+		try {
+			appStore.endUpdate();
 		} finally {
-			if (fos != null) {
-				try {
-					fos.close();
-				} catch (IOException e) {
-					LOGGER.log(Level.SEVERE, "storeCert(" + keyStoreFile + ")", e);
-				}
-			}
+			reloadAppTrustManager();
 		}
 	}
 
+	// the cert was accepted by the user for this hostname before
+	boolean isHostnameKnown(X509Certificate cert, String hostname) {
+		syncAppKeyStore();
+		String alias = hostname.toLowerCase(Locale.US);
+		Certificate stored = appStore.getCertificate(alias);
+		int mode = pinningMode;
+		boolean known;
+		if (cert.equals(stored))
+			known = true;
+		else if (mode == PIN_CERTIFICATE || stored == null)
+			known = false;
+		else
+			known = MTMStore.keyFingerprint(cert).equals(MTMStore.keyFingerprint(stored))
+				&& (mode == PIN_KEY || isSameIssuer(cert, stored));
+		if (known)
+			markUsed(Collections.singletonList(alias));
+		return known;
+	}
+
+	/**
+	 * Checks the server certificate against the hostname during the
+	 * handshake, asking the user on mismatch.
+	 */
+	void checkHostnameTrusted(X509Certificate cert, String hostname)
+		throws CertificateException
+	{
+		if (MTMCertificates.certMatchesHostname(cert, hostname)) {
+			MTMTrace.event(MTMTrace.HOSTNAME_MATCHES, hostname);
+			return;
+		}
+		if (isHostnameKnown(cert, hostname)) {
+			MTMTrace.event(MTMTrace.HOSTNAME_KNOWN, hostname);
+			return;
+		}
+		if (!interactHostname(cert, hostname))
+			throw new CertificateException("Server could not authenticate as " + hostname);
+	}
+
 	// if the certificate is stored in the app key store, it is considered "known"
-	private boolean isCertKnown(X509Certificate cert) {
-		try {
-			return appKeyStore.getCertificateAlias(cert) != null;
-		} catch (KeyStoreException e) {
+	private boolean isCertKnown(X509Certificate[] chain) {
+		String fingerprint = MTMCertificates.certHash(chain[0], "SHA-256");
+		List<String> aliases = appStore.findAliases(fingerprint);
+		if (aliases.isEmpty())
 			return false;
+		markUsed(aliases);
+		if (chain.length > 1) {
+			synchronized (seenChains) {
+				if (seenChains.get(fingerprint) == null)
+					seenChains.put(fingerprint, chain);
+			}
+		}
+		return true;
+	}
+
+	// a renewed certificate with the same key as a stored one, if enabled
+	private boolean isKeyKnown(X509Certificate cert) {
+		int mode = pinningMode;
+		if (mode == PIN_CERTIFICATE)
+			return false;
+		for (String alias : appStore.findAliasesByKey(MTMStore.keyFingerprint(cert))) {
+			if (mode == PIN_KEY || isSameIssuer(cert, appStore.getCertificate(alias))) {
+				markUsed(Collections.singletonList(alias));
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private static boolean isSameIssuer(X509Certificate cert, Certificate stored) {
+		return (stored instanceof X509Certificate)
+			&& cert.getIssuerX500Principal().equals(((X509Certificate)stored).getIssuerX500Principal());
+	}
+
+	// appTrustManager can only succeed if the chain leads to one of our certs
+	private boolean isAppAnchored(X509Certificate[] chain) {
+		for (X509Certificate c : chain) {
+			if (appStore.containsSubject(c.getIssuerX500Principal())
+					|| appStore.containsSubject(c.getSubjectX500Principal()))
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Runs a trust manager on the chain.
+	 *
+	 * @return <tt>null</tt> on success, or the reason for the failure
+	 */
+	private static CertificateException validate(X509TrustManager tm, X509Certificate[] chain,
+			String authType, boolean isServer) {
+		try {
+			if (isServer)
+				tm.checkServerTrusted(chain, authType);
+			else
+				tm.checkClientTrusted(chain, authType);
+			return null;
+		} catch (CertificateException e) {
+			return e;
+		} catch (RuntimeException e) {
+			// e.g. the JSSE PKIX implementation refuses to work without anchors
+			return new CertificateException(e);
 		}
 	}
 
@@ -415,7 +1299,7 @@ public class MemorizingTrustManager implements X509TrustManager {
 
 	private static boolean isPathException(Throwable e) {
 		do {
-			if (e instanceof CertPathValidatorException)
+			if (e instanceof CertPathValidatorException || e instanceof CertPathBuilderException)
 				return true;
 			e = e.getCause();
 		} while (e != null);
@@ -425,33 +1309,146 @@ public class MemorizingTrustManager implements X509TrustManager {
 	public void checkCertTrusted(X509Certificate[] chain, String authType, boolean isServer)
 		throws CertificateException
 	{
-		LOGGER.log(Level.FINE, "checkCertTrusted(" + chain + ", " + authType + ", " + isServer + ")");
+		checkCertTrusted(chain, authType, isServer, null);
+	}
+
+	// hostname is only used for the policy, and may be null
+	void checkCertTrusted(X509Certificate[] chain, String authType, boolean isServer, String hostname)
+		throws CertificateException
+	{
+		MTMRecorder r = recorder;
+		if (r == null) {
+			verifyCertTrusted(chain, authType, isServer, hostname);
+			return;
+		}
+		boolean trusted = false;
 		try {
-			LOGGER.log(Level.FINE, "checkCertTrusted: trying appTrustManager");
-			if (isServer)
-				appTrustManager.checkServerTrusted(chain, authType);
-			else
-				appTrustManager.checkClientTrusted(chain, authType);
-		} catch (CertificateException ae) {
-			LOGGER.log(Level.FINER, "checkCertTrusted: appTrustManager did not verify certificate. Will fall back to secondary verification mechanisms (if any).", ae);
-			if (isCertKnown(chain[0])) {
-				LOGGER.log(Level.INFO, "checkCertTrusted: accepting cert already stored in keystore");
+			verifyCertTrusted(chain, authType, isServer, hostname);
+			trusted = true;
+		} finally {
+			r.recordCheck(chain, authType, isServer, hostname, trusted);
+		}
+	}
+
+	private void verifyCertTrusted(X509Certificate[] chain, String authType, boolean isServer, String hostname)
+		throws CertificateException
+	{
+		MTMTrace.event(MTMTrace.CHECK_CERT, authType, Boolean.valueOf(isServer));
+		awaitWarmUp();
+		syncAppKeyStore();
+		// cheapest check first: the server cert was accepted before
+		if (isCertKnown(chain)) {
+			MTMTrace.event(MTMTrace.CERT_KNOWN);
+			return;
+		}
+		if (isKeyKnown(chain[0])) {
+			MTMTrace.event(MTMTrace.KEY_KNOWN);
+			return;
+		}
+		// the cooldowns were cleared by syncAppKeyStore() if the store has
+		// changed, so the chain would be rejected again after validation
+		if (abortCooldownMillis > 0) {
+			String key = certDecisionKey(chain);
+			if (isRecentlyAborted(key)) {
+				MTMTrace.event(MTMTrace.RECENTLY_ABORTED, key);
+				throw new CertificateException("Certificate was rejected by the user");
+			}
+		}
+		ExecutorService executor = validationExecutor;
+		if (executor != null && defaultTrustManager != null && isAppAnchored(chain)) {
+			CertificateException cause = validateParallel(executor, chain, authType, isServer);
+			if (cause == null) {
+				markAnchorsUsed(chain);
 				return;
 			}
-			try {
-				if (defaultTrustManager == null) {
-					LOGGER.fine("No defaultTrustManager set. Verification failed, throwing " + ae);
-					throw ae;
+			interactCert(chain, authType, hostname, cause);
+			return;
+		}
+		// most servers are signed by a public CA
+		CertificateException defaultFailure = null;
+		if (defaultTrustManager != null) {
+			MTMTrace.event(MTMTrace.DEFAULT_TRYING);
+			defaultFailure = validate(defaultTrustManager, chain, authType, isServer);
+			if (defaultFailure == null)
+				return;
+			MTMTrace.event(MTMTrace.DEFAULT_FAILED, defaultFailure);
+		}
+		CertificateException appFailure = null;
+		if (isAppAnchored(chain)) {
+			MTMTrace.event(MTMTrace.APP_TRYING);
+			appFailure = validate(getAppTrustManager(), chain, authType, isServer);
+			if (appFailure == null) {
+				markAnchorsUsed(chain);
+				return;
+			}
+			MTMTrace.event(MTMTrace.APP_FAILED, appFailure);
+		}
+		CertificateException cause = (defaultFailure != null) ? defaultFailure : appFailure;
+		if (cause == null)
+			cause = new CertificateException(new CertPathValidatorException(
+					"Trust anchor for certification path not found."));
+		interactCert(chain, authType, hostname, cause);
+	}
+
+	/**
+	 * Runs the default and the app trust manager at the same time.
+	 *
+	 * @return <tt>null</tt> if one of them accepted the chain, or the
+	 *	failure of the default trust manager
+	 */
+	private CertificateException validateParallel(ExecutorService executor, final X509Certificate[] chain,
+			final String authType, final boolean isServer) {
+		MTMTrace.event(MTMTrace.PARALLEL_TRYING);
+		final X509TrustManager defaultTM = defaultTrustManager;
+		final X509TrustManager appTM = getAppTrustManager();
+		CompletionService<CertificateException> cs = new ExecutorCompletionService<CertificateException>(executor);
+		Future<CertificateException> defaultResult = cs.submit(new Callable<CertificateException>() {
+			public CertificateException call() {
+				return validate(defaultTM, chain, authType, isServer);
+			}
+		});
+		Future<CertificateException> appResult = cs.submit(new Callable<CertificateException>() {
+			public CertificateException call() {
+				return validate(appTM, chain, authType, isServer);
+			}
+		});
+		CertificateException defaultFailure = null;
+		boolean interrupted = false;
+		try {
+			for (int pending = 2; pending > 0; ) {
+				Future<CertificateException> done;
+				try {
+					done = cs.take();
+				} catch (InterruptedException e) {
+					// the handshake can not continue without a result
+					interrupted = true;
+					continue;
 				}
-				LOGGER.log(Level.FINE, "checkCertTrusted: trying defaultTrustManager");
-				if (isServer)
-					defaultTrustManager.checkServerTrusted(chain, authType);
-				else
-					defaultTrustManager.checkClientTrusted(chain, authType);
-			} catch (CertificateException e) {
-				LOGGER.log(Level.FINER, "checkCertTrusted: defaultTrustManager failed", e);
-				interactCert(chain, authType, e);
+				pending--;
+				CertificateException failure = getResult(done);
+				if (failure == null) {
+					MTMTrace.event(MTMTrace.PARALLEL_SUCCEEDED, (done == defaultResult) ? "default" : "app");
+					return null;
+				}
+				if (done == defaultResult)
+					defaultFailure = failure;
+				MTMTrace.event(MTMTrace.PARALLEL_FAILED, (done == defaultResult) ? "default" : "app", failure);
 			}
+		} finally {
+			defaultResult.cancel(true);
+			appResult.cancel(true);
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		return defaultFailure;
+	}
+
+	private static CertificateException getResult(Future<CertificateException> f) {
+		try {
+			return f.get();
+		} catch (InterruptedException | ExecutionException e) {
+			// take() has returned it, so it is done
+			return new CertificateException(e);
 		}
 	}
 
@@ -467,42 +1464,297 @@ public class MemorizingTrustManager implements X509TrustManager {
 		checkCertTrusted(chain, authType, true);
 	}
 
-	public X509Certificate[] getAcceptedIssuers()
-	{
-		LOGGER.log(Level.FINE, "getAcceptedIssuers()");
-		return defaultTrustManager.getAcceptedIssuers();
+	/**
+	 * Returns the CAs of both the default and the app trust manager.
+	 * Server certificates accepted by the user are not CAs and are left
+	 * out.
+	 *
+	 * The list is computed once and cached until the app KeyStore is
+	 * modified. The returned array is shared between callers and must
+	 * not be modified.
+	 */
+	public X509Certificate[] getAcceptedIssuers()
+	{
+		LOGGER.log(Level.FINE, "getAcceptedIssuers()");
+		awaitWarmUp();
+		syncAppKeyStore();
+		synchronized (acceptedIssuersLock) {
+			if (acceptedIssuers == null) {
+				LinkedHashSet<X509Certificate> issuers = new LinkedHashSet<X509Certificate>();
+				if (defaultTrustManager != null)
+					Collections.addAll(issuers, defaultTrustManager.getAcceptedIssuers());
+				X509TrustManager tm = getAppTrustManager();
+				if (tm != null) {
+					for (X509Certificate cert : tm.getAcceptedIssuers()) {
+						if (MTMCertificates.isCA(cert))
+							issuers.add(cert);
+					}
+				}
+				acceptedIssuers = issuers.toArray(new X509Certificate[issuers.size()]);
+			}
+			return acceptedIssuers;
+		}
+	}
+
+	private static int createDecisionId(MTMDecision d) {
+		int myId;
+		synchronized(openDecisions) {
+			myId = decisionId;
+			d.id = myId;
+			openDecisions.put(myId, d);
+			decisionId += 1;
+		}
+		return myId;
+	}
+
+	/**
+	 * Returns the oldest decision that still waits for the user.
+	 *
+	 * @return the decision or <tt>null</tt> if the queue is empty
+	 */
+	static MTMDecision nextOpenDecision() {
+		synchronized(openDecisions) {
+			return (openDecisions.size() > 0) ? openDecisions.valueAt(0) : null;
+		}
+	}
+
+	/**
+	 * Counts the other open decisions about the same certificate and
+	 * problem as the given one.
+	 */
+	static int countSimilarDecisions(MTMDecision d) {
+		int count = 0;
+		synchronized(openDecisions) {
+			for (int i = 0; i < openDecisions.size(); i++) {
+				MTMDecision other = openDecisions.valueAt(i);
+				if (other != d && d.isSimilar(other))
+					count++;
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Returns where a store can be found again after a process restart.
+	 *
+	 * @return the location, or <tt>null</tt> for stores that can not be
+	 *	reopened without the app
+	 */
+	static String getStoreLocation(MTMStore store) {
+		if (store instanceof MTMKeyStoreFile)
+			return "keystore:" + ((MTMKeyStoreFile)store).getFile().getAbsolutePath();
+		else if (store instanceof MTMIndexedStore)
+			return "indexed:" + ((MTMIndexedStore)store).getFile().getAbsolutePath();
+		else if (store instanceof MTMPartition) {
+			MTMPartition p = (MTMPartition)store;
+			String parent = getStoreLocation(p.getParent());
+			if (parent != null)
+				return "partition:" + p.getNamespace() + "/" + parent;
+		}
+		return null;
+	}
+
+	static MTMStore openStoreLocation(String location) {
+		if (location == null)
+			return null;
+		else if (location.startsWith("keystore:"))
+			return new MTMKeyStoreFile(new File(location.substring(9)));
+		else if (location.startsWith("indexed:"))
+			return new MTMIndexedStore(new File(location.substring(8)));
+		else if (location.startsWith("partition:")) {
+			int slash = location.indexOf('/', 10);
+			MTMStore parent = openStoreLocation(location.substring(slash + 1));
+			if (slash > 0 && parent != null)
+				return parent.partition(location.substring(10, slash));
+		}
+		return null;
+	}
+
+	/**
+	 * Adds the reference to the decision's payload to the intent.
+	 */
+	private static void putDecisionPayload(Intent ni, MTMDecision d) {
+		ni.putExtra(DECISION_INTENT_SESSION, DECISION_SESSION);
+		if (d.payloadFile != null)
+			ni.putExtra(DECISION_INTENT_TOKEN, d.payloadFile.getName());
+	}
+
+	private static ExecutorService newPayloadExecutor() {
+		ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1,
+				10, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "MTM decision payloads");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		executor.allowCoreThreadTimeOut(true);
+		return executor;
+	}
+
+	/**
+	 * Removes the payloads of decisions that were never answered, once
+	 * per process.
+	 */
+	private static void pruneDecisionPayloads(final Context c) {
+		synchronized (payloadExecutor) {
+			if (payloadsPruned)
+				return;
+			payloadsPruned = true;
+		}
+		payloadExecutor.execute(new Runnable() {
+			public void run() {
+				File[] old = c.getDir(DECISION_DIR, Context.MODE_PRIVATE).listFiles();
+				if (old == null)
+					return;
+				long expired = System.currentTimeMillis() - DECISION_PAYLOAD_MILLIS;
+				for (File f : old) {
+					if (f.lastModified() < expired)
+						f.delete();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Writes what is needed to show and store an "always" decision into
+	 * app-private storage, so that it survives a process restart. The
+	 * intent only carries the random file name, as intents of
+	 * notifications can be modified by other apps.
+	 * <p>
+	 * Called on the payload executor.
+	 */
+	private void writeDecisionPayload(MTMDecision d) {
+		if (d.cert == null || d.storeLocation == null)
+			return;
+		byte[] token = new byte[16];
+		payloadRandom.nextBytes(token);
+		File file = new File(master.getDir(DECISION_DIR, Context.MODE_PRIVATE),
+				MTMCertificates.hexString(token).replace(":", ""));
+		DataOutputStream out = null;
+		try {
+			out = new DataOutputStream(new FileOutputStream(file));
+			out.writeUTF(d.message);
+			out.writeInt(d.titleId);
+			out.writeUTF(d.alias);
+			out.writeUTF(d.storeLocation);
+			byte[] der = d.cert.getEncoded();
+			out.writeInt(der.length);
+			out.write(der);
+			out.close();
+			out = null;
+			d.payloadFile = file;
+		} catch (IOException | CertificateEncodingException e) {
+			LOGGER.log(Level.WARNING, "writeDecisionPayload(" + d.alias + ")", e);
+			file.delete();
+		} finally {
+			if (out != null) {
+				try {
+					out.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "writeDecisionPayload(" + d.alias + ")", e);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the payloads of answered decisions. This runs after their
+	 * pending writes, on the payload executor.
+	 */
+	private static void deleteDecisionPayloads(final List<MTMDecision> decisions) {
+		payloadExecutor.execute(new Runnable() {
+			public void run() {
+				for (MTMDecision d : decisions) {
+					File f = d.payloadFile;
+					if (f != null)
+						f.delete();
+				}
+			}
+		});
 	}
 
-	private static int createDecisionId(MTMDecision d) {
-		int myId;
-		synchronized(openDecisions) {
-			myId = decisionId;
-			openDecisions.put(myId, d);
-			decisionId += 1;
+	/**
+	 * Restores a decision from the intent of a MemorizingActivity that
+	 * was started by an earlier process. Its MTM instance and waiting
+	 * thread are gone, but an "always" can still be stored.
+	 *
+	 * @param c a context of the app, to find the payload
+	 * @return the decision, or <tt>null</tt> if the intent is from this
+	 *	process or its payload is gone
+	 */
+	static MTMDecision decisionFromIntent(Context c, Intent i) {
+		if (i == null || i.getLongExtra(DECISION_INTENT_SESSION, DECISION_SESSION) == DECISION_SESSION)
+			return null;
+		String token = i.getStringExtra(DECISION_INTENT_TOKEN);
+		// only a file name of our own, never a path
+		if (token == null || !token.matches("[0-9a-f]{32}"))
+			return null;
+		File file = new File(c.getDir(DECISION_DIR, Context.MODE_PRIVATE), token);
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new FileInputStream(file));
+			MTMDecision d = new MTMDecision(in.readUTF(), in.readInt(), null);
+			d.id = -1;
+			d.alias = in.readUTF();
+			d.storeLocation = in.readUTF();
+			byte[] der = new byte[in.readInt()];
+			in.readFully(der);
+			d.cert = (X509Certificate)CertificateFactory.getInstance("X.509")
+				.generateCertificate(new ByteArrayInputStream(der));
+			d.payloadFile = file;
+			return d;
+		} catch (FileNotFoundException e) {
+			// already answered
+			return null;
+		} catch (IOException | CertificateException e) {
+			LOGGER.log(Level.SEVERE, "decisionFromIntent", e);
+			return null;
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+					LOGGER.log(Level.FINE, "decisionFromIntent", e);
+				}
+			}
 		}
-		return myId;
 	}
 
-	private static String hexString(byte[] data) {
-		StringBuilder si = new StringBuilder();
-		for (int i = 0; i < data.length; i++) {
-			si.append(String.format("%02x", data[i]));
-			if (i < data.length - 1)
-				si.append(":");
-		}
-		return si.toString();
+	/**
+	 * Handles the answer to a decision restored by decisionFromIntent(),
+	 * storing the certificate on "always".
+	 */
+	static void lateDecisionResult(final MTMDecision d, final int decision) {
+		new Thread("MTM late decision") {
+			public void run() {
+				// only answer it once
+				d.payloadFile.delete();
+				if (decision != MTMDecision.DECISION_ALWAYS)
+					return;
+				MTMStore store = openStoreLocation(d.storeLocation);
+				if (store == null)
+					return;
+				LOGGER.log(Level.INFO, "storing late decision for " + d.alias);
+				try {
+					store.load();
+					store.beginUpdate();
+					try {
+						store.setCertificate(d.alias, d.cert);
+					} finally {
+						store.endUpdate();
+					}
+				} catch (KeyStoreException e) {
+					LOGGER.log(Level.SEVERE, "storeLateDecision(" + d.alias + ")", e);
+				}
+			}
+		}.start();
 	}
 
-	private static String certHash(final X509Certificate cert, String digest) {
-		try {
-			MessageDigest md = MessageDigest.getInstance(digest);
-			md.update(cert.getEncoded());
-			return hexString(md.digest());
-		} catch (java.security.cert.CertificateEncodingException e) {
-			return e.getMessage();
-		} catch (java.security.NoSuchAlgorithmException e) {
-			return e.getMessage();
-		}
+	static void cancelNotification(Context c) {
+		NotificationManager nm = (NotificationManager)c.getSystemService(Context.NOTIFICATION_SERVICE);
+		nm.cancel(NOTIFICATION_ID);
 	}
 
 	private void certDetails(StringBuilder si, X509Certificate c) {
@@ -542,9 +1794,9 @@ public class MemorizingTrustManager implements X509TrustManager {
 		si.append(" - ");
 		si.append(validityDateFormater.format(c.getNotAfter()));
 		si.append("\nSHA-256: ");
-		si.append(certHash(c, "SHA-256"));
+		si.append(MTMCertificates.certHash(c, "SHA-256"));
 		si.append("\nSHA-1: ");
-		si.append(certHash(c, "SHA-1"));
+		si.append(MTMCertificates.certHash(c, "SHA-1"));
 		si.append("\nSigned by: ");
 		si.append(c.getIssuerDN().toString());
 		si.append("\n");
@@ -616,12 +1868,18 @@ public class MemorizingTrustManager implements X509TrustManager {
 		}
 	}
 
+	/**
+	 * Posts or updates the notification summarizing all pending decisions.
+	 */
 	@TargetApi(Build.VERSION_CODES.HONEYCOMB)
-	void startActivityNotification(Intent intent, int decisionId, String certName) {
+	void startActivityNotification(Intent intent, int pending, String certName) {
 		Notification notification;
 		final PendingIntent call = PendingIntent.getActivity(master, 0, intent,
-				0);
+				PendingIntent.FLAG_UPDATE_CURRENT);
 		final String mtmNotification = master.getString(R.string.mtm_notification);
+		if (pending > 1)
+			certName = master.getResources().getQuantityString(R.plurals.mtm_notification_pending,
+					pending, pending);
 		final long currentMillis = System.currentTimeMillis();
 		final Context context = master.getApplicationContext();
 
@@ -635,6 +1893,7 @@ public class MemorizingTrustManager implements X509TrustManager {
 					currentMillis);
 			setLatestEventInfoReflective(n, context, mtmNotification, certName, call);
 			n.flags |= Notification.FLAG_AUTO_CANCEL;
+			n.number = pending;
 			notification = n;
 		} else {
 			Notification.Builder notificationBuilder = Build.VERSION.SDK_INT >= Build.VERSION_CODES.O ?
@@ -646,12 +1905,14 @@ public class MemorizingTrustManager implements X509TrustManager {
 					.setTicker(certName)
 					.setSmallIcon(android.R.drawable.ic_lock_lock)
 					.setWhen(currentMillis)
+					.setNumber(pending)
+					.setOnlyAlertOnce(true)
 					.setContentIntent(call)
 					.setAutoCancel(true)
 					.getNotification();
 		}
 
-		notificationManager.notify(NOTIFICATION_ID + decisionId, notification);
+		notificationManager.notify(NOTIFICATION_ID, notification);
 	}
 
 	/**
@@ -663,48 +1924,429 @@ public class MemorizingTrustManager implements X509TrustManager {
 		return (foregroundAct != null) ? foregroundAct : master;
 	}
 
-	int interact(final String message, final int titleId) {
-		/* prepare the MTMDecision blocker object */
-		MTMDecision choice = new MTMDecision();
-		final int myId = createDecisionId(choice);
+	/**
+	 * Returns the IDs of all decisions that are waiting for the user.
+	 *
+	 * @return the decision IDs, oldest first
+	 */
+	protected static int[] getOpenDecisionIds() {
+		synchronized(openDecisions) {
+			int[] ids = new int[openDecisions.size()];
+			for (int i = 0; i < ids.length; i++)
+				ids[i] = openDecisions.keyAt(i);
+			return ids;
+		}
+	}
+
+	/**
+	 * Brings the pending decisions to the user's attention.
+	 *
+	 * There is only one MemorizingActivity, which processes all open
+	 * decisions one after another. If it is already in the foreground,
+	 * it will pick up new decisions by itself.
+	 * <p>
+	 * This is called on the main thread whenever new decisions were
+	 * queued. Subclasses can override it to answer decisions without
+	 * MemorizingActivity, e.g. from an automated test harness, by
+	 * passing the {@link #getOpenDecisionIds()} to
+	 * {@link #interactResult(int, int)}.
+	 */
+	protected void showDecisionUI() {
+		MTMDecision latest;
+		int pending;
+		synchronized(openDecisions) {
+			pending = openDecisions.size();
+			if (pending == 0)
+				return;
+			latest = openDecisions.valueAt(pending - 1);
+		}
+		if (MemorizingActivity.isResumed())
+			return;
+
+		Intent ni = new Intent(master, MemorizingActivity.class);
+		ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK | Intent.FLAG_ACTIVITY_SINGLE_TOP);
+		ni.putExtra(DECISION_INTENT_ID, latest.id);
+		ni.putExtra(DECISION_INTENT_CERT, latest.message);
+		ni.putExtra(DECISION_TITLE_ID, latest.titleId);
+		putDecisionPayload(ni, latest);
 
-		masterHandler.post(new Runnable() {
+		// we try to directly start the activity and fall back to
+		// making a notification. If no foreground activity is set
+		// (foregroundAct==null) or if the app developer set an
+		// invalid / expired activity, the catch-all fallback is
+		// deployed.
+		try {
+			foregroundAct.startActivity(ni);
+		} catch (Exception e) {
+			LOGGER.log(Level.FINE, "startActivity(MemorizingActivity)", e);
+			startActivityNotification(ni, pending, latest.message);
+		}
+	}
+
+	/**
+	 * Adds a decision to the queue and brings it to the user's attention.
+	 */
+	private void queueDecision(final MTMDecision choice) {
+		choice.storeLocation = getStoreLocation(appStore);
+		createDecisionId(choice);
+		// the UI is updated after the write, so the intent can refer to it
+		payloadExecutor.execute(new Runnable() {
 			public void run() {
-				Intent ni = new Intent(master, MemorizingActivity.class);
-				ni.setFlags(Intent.FLAG_ACTIVITY_NEW_TASK);
-				ni.setData(Uri.parse(MemorizingTrustManager.class.getName() + "/" + myId));
-				ni.putExtra(DECISION_INTENT_ID, myId);
-				ni.putExtra(DECISION_INTENT_CERT, message);
-				ni.putExtra(DECISION_TITLE_ID, titleId);
-
-				// we try to directly start the activity and fall back to
-				// making a notification. If no foreground activity is set
-				// (foregroundAct==null) or if the app developer set an
-				// invalid / expired activity, the catch-all fallback is
-				// deployed.
-				try {
-					foregroundAct.startActivity(ni);
-				} catch (Exception e) {
-					LOGGER.log(Level.FINE, "startActivity(MemorizingActivity)", e);
-					startActivityNotification(ni, myId, message);
+				boolean open;
+				synchronized(choice) {
+					open = (choice.state == MTMDecision.DECISION_INVALID);
 				}
+				// skip the write if it was answered in the meantime
+				if (open)
+					writeDecisionPayload(choice);
+				postDecisionUI();
 			}
 		});
+	}
+
+	/**
+	 * Posts an update of the decision UI, unless one is already pending.
+	 * Called after the payload of a new decision has been written, so
+	 * that the intent can refer to it.
+	 */
+	private void postDecisionUI() {
+		// coalesce UI updates for bursts of decisions
+		boolean post;
+		synchronized(openDecisions) {
+			post = !decisionUIPending;
+			decisionUIPending = true;
+		}
+		if (post) {
+			masterHandler.post(new Runnable() {
+				public void run() {
+					// decisions queued from now on need another call
+					synchronized(openDecisions) {
+						decisionUIPending = false;
+					}
+					showDecisionUI();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Makes sure that an "always" is still stored if the user answers
+	 * after the waiting thread has given up.
+	 */
+	private void abandonDecision(final MTMDecision choice) {
+		synchronized(choice) {
+			if (choice.state != MTMDecision.DECISION_INVALID)
+				return;
+			choice.onResult = new Runnable() {
+				public void run() {
+					if (choice.state != MTMDecision.DECISION_ALWAYS)
+						return;
+					// storing the certificate does file I/O, keep it off the UI thread
+					new Thread("MTM late decision " + choice.id) {
+						public void run() {
+							storeCert(choice.alias, choice.cert);
+						}
+					}.start();
+				}
+			};
+		}
+	}
+
+	/**
+	 * Reserves one of the pending prompts allowed by setPromptLimit().
+	 *
+	 * @param similarityKey the key of the new decision, for attaching
+	 * @param mayWait the caller may wait for a slot or an attached decision
+	 * @return <tt>null</tt> if a slot was reserved, a similar open decision
+	 *	to wait for, or REJECTED
+	 */
+	private MTMDecision reservePrompt(String similarityKey, boolean mayWait) {
+		boolean interrupted = false;
+		try {
+			synchronized (promptLock) {
+				while (promptLimit > 0 && pendingPrompts >= promptLimit) {
+					if (!mayWait)
+						return REJECTED;
+					if (promptOverflow == OVERFLOW_ATTACH) {
+						MTMDecision similar = findOpenDecision(similarityKey);
+						return (similar != null) ? similar : REJECTED;
+					}
+					if (promptOverflow != OVERFLOW_QUEUE || queuedPrompts >= promptQueueLimit)
+						return REJECTED;
+					queuedPrompts++;
+					try {
+						promptLock.wait();
+					} catch (InterruptedException e) {
+						interrupted = true;
+						return REJECTED;
+					} finally {
+						queuedPrompts--;
+					}
+				}
+				pendingPrompts++;
+				return null;
+			}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+
+	private void releasePrompt() {
+		synchronized (promptLock) {
+			pendingPrompts--;
+			promptLock.notifyAll();
+		}
+	}
+
+	private static MTMDecision findOpenDecision(String similarityKey) {
+		if (similarityKey == null)
+			return null;
+		synchronized(openDecisions) {
+			for (int i = 0; i < openDecisions.size(); i++) {
+				MTMDecision d = openDecisions.valueAt(i);
+				if (similarityKey.equals(d.similarityKey))
+					return d;
+			}
+		}
+		return null;
+	}
 
-		LOGGER.log(Level.FINE, "openDecisions: " + openDecisions + ", waiting on " + myId);
+	/**
+	 * Waits until the decision is answered by interactResult().
+	 *
+	 * The answer may arrive before this is called, and wait() may return
+	 * without one, so only the state of the decision is relied on.
+	 *
+	 * @return the decision, or DECISION_INVALID if the thread was
+	 *	interrupted, with its interrupt status set again
+	 */
+	private static int awaitDecision(MTMDecision choice) {
+		boolean interrupted = false;
+		int state;
+		synchronized(choice) {
+			while (choice.state == MTMDecision.DECISION_INVALID) {
+				try {
+					choice.wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+					break;
+				}
+			}
+			state = choice.state;
+		}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		return state;
+	}
+
+	int interact(final String message, final int titleId, String similarityKey,
+			X509Certificate cert, String alias) {
+		MTMDecision attach = reservePrompt(similarityKey, true);
+		if (attach == REJECTED) {
+			MTMTrace.event(MTMTrace.PROMPT_REJECTED, similarityKey);
+			return MTMDecision.DECISION_INVALID;
+		} else if (attach != null) {
+			MTMTrace.event(MTMTrace.PROMPT_ATTACHED, similarityKey, attach.id);
+			return awaitDecision(attach);
+		}
 		try {
-			synchronized(choice) { choice.wait(); }
-		} catch (InterruptedException e) {
-			LOGGER.log(Level.FINER, "InterruptedException", e);
+			/* prepare the MTMDecision blocker object */
+			MTMDecision choice = new MTMDecision(message, titleId, similarityKey);
+			choice.cert = cert;
+			choice.alias = alias;
+			queueDecision(choice);
+			final int myId = choice.id;
+
+			MTMTrace.event(MTMTrace.DECISION_WAITING, null, myId);
+			int state = awaitDecision(choice);
+			if (state == MTMDecision.DECISION_INVALID) {
+				LOGGER.log(Level.FINER, "interrupted while waiting for decision " + myId);
+				abandonDecision(choice);
+			}
+			MTMTrace.event(MTMTrace.DECISION_FINISHED, Integer.valueOf(state), myId);
+			return state;
+		} finally {
+			releasePrompt();
 		}
-		LOGGER.log(Level.FINE, "finished wait on " + myId + ": " + choice.state);
-		return choice.state;
 	}
 	
-	void interactCert(final X509Certificate[] chain, String authType, CertificateException cause)
-			throws CertificateException
+	/**
+	 * Asks the policy, if any, for a decision without user interaction.
+	 *
+	 * @return the policy's decision or MTMPolicy.NONE
+	 */
+	int decidePolicy(X509Certificate[] chain, String hostname, int error) {
+		MTMPolicy p = policy;
+		if (p == null)
+			return MTMPolicy.NONE;
+		try {
+			int decision = p.decide(chain, hostname, error);
+			MTMTrace.event(MTMTrace.POLICY_DECISION, hostname, decision);
+			return decision;
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "decidePolicy(" + hostname + ")", e);
+			return MTMPolicy.ABORT;
+		}
+	}
+
+	private static int errorType(CertificateException cause) {
+		if (isPathException(cause))
+			return MTMPolicy.ERROR_UNTRUSTED;
+		else if (isExpiredException(cause))
+			return MTMPolicy.ERROR_EXPIRED;
+		return MTMPolicy.ERROR_OTHER;
+	}
+
+	private boolean isRecentlyAborted(String key) {
+		synchronized (abortedDecisions) {
+			Long expiry = abortedDecisions.get(key);
+			if (expiry == null)
+				return false;
+			if (expiry - System.nanoTime() > 0)
+				return true;
+			abortedDecisions.remove(key);
+			return false;
+		}
+	}
+
+	private void rememberAbort(String key) {
+		long cooldown = abortCooldownMillis;
+		if (cooldown <= 0)
+			return;
+		long now = System.nanoTime();
+		synchronized (abortedDecisions) {
+			Iterator<Long> it = abortedDecisions.values().iterator();
+			while (it.hasNext()) {
+				if (it.next() - now <= 0)
+					it.remove();
+			}
+			abortedDecisions.put(key, now + cooldown * 1000000);
+		}
+	}
+
+	void clearAbortedDecisions() {
+		synchronized (abortedDecisions) {
+			abortedDecisions.clear();
+		}
+	}
+
+	/**
+	 * Checks if the calling thread must not wait for the user.
+	 */
+	private boolean shouldDefer() {
+		switch (deferMode) {
+		case DEFER_ALWAYS:
+			return true;
+		case DEFER_ON_MAIN_THREAD:
+			return Looper.myLooper() == Looper.getMainLooper();
+		default:
+			return false;
+		}
+	}
+
+	private boolean consumeOnceAllowance(String key) {
+		synchronized (onceAllowances) {
+			Long expiry = onceAllowances.remove(key);
+			return expiry != null && expiry - System.nanoTime() > 0;
+		}
+	}
+
+	private void grantOnceAllowance(String key) {
+		long now = System.nanoTime();
+		synchronized (onceAllowances) {
+			Iterator<Long> it = onceAllowances.values().iterator();
+			while (it.hasNext()) {
+				if (it.next() - now <= 0)
+					it.remove();
+			}
+			onceAllowances.put(key, now + ONCE_ALLOWANCE_MILLIS * 1000000);
+		}
+	}
+
+	/**
+	 * Queues a decision without waiting for it. The result is applied in
+	 * the background and then passed to the decision listener.
+	 *
+	 * @param key the similarity key, also used for the abort cooldown
+	 *	and the once allowance
+	 * @param alias the alias to store the certificate under on "always"
+	 * @return the exception to throw to the caller, the cause if there
+	 *	are too many pending prompts
+	 */
+	private CertificateException deferDecision(String message, String similarityKey,
+			final String key, final String alias, final X509Certificate cert,
+			CertificateException cause) {
+		// deferred callers can neither wait for a slot nor for another prompt
+		if (reservePrompt(similarityKey, false) != null) {
+			MTMTrace.event(MTMTrace.PROMPT_REJECTED, similarityKey);
+			return cause;
+		}
+		final MTMDecision choice = new MTMDecision(message, R.string.mtm_security_risk, similarityKey);
+		choice.cert = cert;
+		choice.alias = alias;
+		choice.onResult = new Runnable() {
+			public void run() {
+				releasePrompt();
+				// storing the certificate does file I/O, keep it off the UI thread
+				new Thread("MTM deferred decision " + choice.id) {
+					public void run() {
+						applyDeferredDecision(choice.id, choice.state, key, alias, cert);
+					}
+				}.start();
+			}
+		};
+		queueDecision(choice);
+		MTMTrace.event(MTMTrace.DECISION_DEFERRED, key, choice.id);
+		return new MTMDeferredDecisionException(choice.id, cause);
+	}
+
+	private void applyDeferredDecision(int id, int decision, String key, String alias, X509Certificate cert) {
+		switch (decision) {
+		case MTMDecision.DECISION_ALWAYS:
+			storeCert(alias, cert);
+			break;
+		case MTMDecision.DECISION_ONCE:
+			grantOnceAllowance(key);
+			break;
+		default:
+			rememberAbort(key);
+		}
+		MTMDecisionListener listener = decisionListener;
+		if (listener == null)
+			return;
+		try {
+			listener.onDecision(id, decision);
+		} catch (RuntimeException e) {
+			LOGGER.log(Level.SEVERE, "onDecision(" + id + ")", e);
+		}
+	}
+
+	// the key of a chain for its prompt, abort cooldown and once allowance
+	private static String certDecisionKey(X509Certificate[] chain) {
+		return "cert:" + MTMCertificates.chainHash(chain, "SHA-256");
+	}
+
+	void interactCert(final X509Certificate[] chain, String authType, String hostname,
+			CertificateException cause) throws CertificateException
 	{
-		switch (interact(certChainMessage(chain, cause), R.string.mtm_security_risk)) {
+		int decision = decidePolicy(chain, hostname, errorType(cause));
+		if (decision == MTMPolicy.NONE) {
+			// the abort cooldown was checked before validating the chain
+			String key = certDecisionKey(chain);
+			if (consumeOnceAllowance(key)) {
+				MTMTrace.event(MTMTrace.ALLOWED_ONCE, key);
+				return;
+			}
+			if (shouldDefer())
+				throw deferDecision(certChainMessage(chain, cause), key, key,
+						chain[0].getSubjectDN().toString(), chain[0], cause);
+			decision = interact(certChainMessage(chain, cause), R.string.mtm_security_risk, key,
+					chain[0], chain[0].getSubjectDN().toString());
+			if (decision == MTMDecision.DECISION_ABORT)
+				rememberAbort(key);
+		}
+		switch (decision) {
 		case MTMDecision.DECISION_ALWAYS:
 			storeCert(chain[0]); // only store the server cert, not the whole chain
 		case MTMDecision.DECISION_ONCE:
@@ -715,8 +2357,30 @@ public class MemorizingTrustManager implements X509TrustManager {
 	}
 
 	boolean interactHostname(X509Certificate cert, String hostname)
+		throws CertificateException
 	{
-		switch (interact(hostNameMessage(cert, hostname), R.string.mtm_security_risk)) {
+		int decision = decidePolicy(new X509Certificate[] { cert }, hostname, MTMPolicy.ERROR_HOSTNAME);
+		if (decision == MTMPolicy.NONE) {
+			// the same certificate for another hostname is a separate question
+			String fingerprint = MTMCertificates.certHash(cert, "SHA-256");
+			String key = "host:" + hostname.toLowerCase(Locale.US) + ":" + fingerprint;
+			if (isRecentlyAborted(key)) {
+				MTMTrace.event(MTMTrace.RECENTLY_ABORTED, hostname);
+				return false;
+			}
+			if (consumeOnceAllowance(key)) {
+				MTMTrace.event(MTMTrace.ALLOWED_ONCE, hostname);
+				return true;
+			}
+			if (shouldDefer())
+				throw deferDecision(hostNameMessage(cert, hostname), key, key,
+						hostname, cert, new CertificateException("Server could not authenticate as " + hostname));
+			decision = interact(hostNameMessage(cert, hostname), R.string.mtm_security_risk,
+					key, cert, hostname);
+			if (decision == MTMDecision.DECISION_ABORT)
+				rememberAbort(key);
+		}
+		switch (decision) {
 		case MTMDecision.DECISION_ALWAYS:
 			storeCert(hostname, cert);
 		case MTMDecision.DECISION_ONCE:
@@ -727,19 +2391,50 @@ public class MemorizingTrustManager implements X509TrustManager {
 	}
 
 	protected static void interactResult(int decisionId, int choice) {
-		MTMDecision d;
+		interactResult(decisionId, choice, false);
+	}
+
+	/**
+	 * Passes the user's choice to the waiting thread.
+	 *
+	 * @param decisionId the decision answered by the user
+	 * @param choice one of the MTMDecision constants
+	 * @param applyToSimilar also answer all other open decisions about the same problem
+	 */
+	static void interactResult(int decisionId, int choice, boolean applyToSimilar) {
+		// the waiting threads only wake up for a valid decision
+		if (choice == MTMDecision.DECISION_INVALID)
+			choice = MTMDecision.DECISION_ABORT;
+		List<MTMDecision> decided = new ArrayList<MTMDecision>();
 		synchronized(openDecisions) {
-			 d = openDecisions.get(decisionId);
-			 openDecisions.remove(decisionId);
-		}
-		if (d == null) {
-			LOGGER.log(Level.SEVERE, "interactResult: aborting due to stale decision reference!");
-			return;
+			MTMDecision d = openDecisions.get(decisionId);
+			if (d == null) {
+				LOGGER.log(Level.SEVERE, "interactResult: aborting due to stale decision reference!");
+				return;
+			}
+			openDecisions.remove(decisionId);
+			decided.add(d);
+			if (applyToSimilar) {
+				for (int i = 0; i < openDecisions.size(); i++) {
+					if (d.isSimilar(openDecisions.valueAt(i)))
+						decided.add(openDecisions.valueAt(i));
+				}
+				for (int i = 1; i < decided.size(); i++)
+					openDecisions.remove(decided.get(i).id);
+			}
 		}
-		synchronized(d) {
-			d.state = choice;
-			d.notify();
+		for (MTMDecision d : decided) {
+			Runnable onResult;
+			synchronized(d) {
+				d.state = choice;
+				// callers may have attached to the decision
+				d.notifyAll();
+				onResult = d.onResult;
+			}
+			if (onResult != null)
+				onResult.run();
 		}
+		deleteDecisionPayloads(decided);
 	}
 	
 	class MemorizingHostnameVerifier implements HostnameVerifier {
@@ -751,27 +2446,139 @@ public class MemorizingTrustManager implements X509TrustManager {
 
 		@Override
 		public boolean verify(String hostname, SSLSession session) {
-			LOGGER.log(Level.FINE, "hostname verifier for " + hostname + ", trying default verifier first");
+			MTMRecorder r = recorder;
+			boolean trusted = verifyHostname(hostname, session);
+			if (r != null) {
+				try {
+					Certificate[] certs = session.getPeerCertificates();
+					X509Certificate[] chain = new X509Certificate[certs.length];
+					for (int i = 0; i < certs.length; i++)
+						chain[i] = (X509Certificate)certs[i];
+					r.recordHostname(chain, hostname, trusted);
+				} catch (Exception e) {
+					// no certificates to record
+				}
+			}
+			return trusted;
+		}
+
+		private boolean verifyHostname(String hostname, SSLSession session) {
+			MTMTrace.event(MTMTrace.VERIFIER_START, hostname);
 			// if the default verifier accepts the hostname, we are done
 			if (defaultVerifier.verify(hostname, session)) {
-				LOGGER.log(Level.FINE, "default verifier accepted " + hostname);
+				MTMTrace.event(MTMTrace.VERIFIER_DEFAULT_OK, hostname);
 				return true;
 			}
 			// otherwise, we check if the hostname is an alias for this cert in our keystore
 			try {
 				X509Certificate cert = (X509Certificate)session.getPeerCertificates()[0];
 				//Log.d(TAG, "cert: " + cert);
-				if (cert.equals(appKeyStore.getCertificate(hostname.toLowerCase(Locale.US)))) {
-					LOGGER.log(Level.FINE, "certificate for " + hostname + " is in our keystore. accepting.");
+				if (isHostnameKnown(cert, hostname)) {
+					MTMTrace.event(MTMTrace.HOSTNAME_KNOWN, hostname);
 					return true;
 				} else {
-					LOGGER.log(Level.FINE, "server " + hostname + " provided wrong certificate, asking user.");
+					MTMTrace.event(MTMTrace.VERIFIER_ASKING, hostname);
 					return interactHostname(cert, hostname);
 				}
+			} catch (MTMDeferredDecisionException e) {
+				MTMTrace.event(MTMTrace.VERIFIER_DEFERRED, hostname, e.getDecisionId());
+				return false;
+			} catch (CertificateException e) {
+				// too many pending prompts
+				return false;
 			} catch (Exception e) {
 				e.printStackTrace();
 				return false;
 			}
 		}
 	}
+
+	@TargetApi(Build.VERSION_CODES.N)
+	class MemorizingExtendedTrustManager extends X509ExtendedTrustManager {
+		// the SNI name requested by the client, or the host it connected to
+		private String peerHost(SSLSession session) {
+			if (session instanceof ExtendedSSLSession) {
+				try {
+					for (SNIServerName name : ((ExtendedSSLSession)session).getRequestedServerNames()) {
+						if (name instanceof SNIHostName)
+							return ((SNIHostName)name).getAsciiName();
+					}
+				} catch (UnsupportedOperationException e) {
+					// fall back to the peer host
+				}
+			}
+			return (session != null) ? session.getPeerHost() : null;
+		}
+
+		private void checkHostname(X509Certificate[] chain, SSLParameters params, SSLSession session)
+			throws CertificateException
+		{
+			if (params == null || params.getEndpointIdentificationAlgorithm() == null)
+				return;
+			String hostname = peerHost(session);
+			if (hostname == null) {
+				MTMTrace.event(MTMTrace.NO_PEER_HOST);
+				throw new CertificateException("No hostname to verify the server certificate against");
+			}
+			checkHostnameTrusted(chain[0], hostname);
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType, Socket socket)
+			throws CertificateException
+		{
+			checkCertTrusted(chain, authType, false);
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType, Socket socket)
+			throws CertificateException
+		{
+			if (socket instanceof SSLSocket) {
+				SSLSocket sslSocket = (SSLSocket)socket;
+				SSLSession session = sslSocket.getHandshakeSession();
+				checkCertTrusted(chain, authType, true, peerHost(session));
+				checkHostname(chain, sslSocket.getSSLParameters(), session);
+			} else
+				checkCertTrusted(chain, authType, true);
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+			throws CertificateException
+		{
+			checkCertTrusted(chain, authType, false);
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType, SSLEngine engine)
+			throws CertificateException
+		{
+			if (engine != null) {
+				SSLSession session = engine.getHandshakeSession();
+				checkCertTrusted(chain, authType, true, peerHost(session));
+				checkHostname(chain, engine.getSSLParameters(), session);
+			} else
+				checkCertTrusted(chain, authType, true);
+		}
+
+		@Override
+		public void checkClientTrusted(X509Certificate[] chain, String authType)
+			throws CertificateException
+		{
+			checkCertTrusted(chain, authType, false);
+		}
+
+		@Override
+		public void checkServerTrusted(X509Certificate[] chain, String authType)
+			throws CertificateException
+		{
+			checkCertTrusted(chain, authType, true);
+		}
+
+		@Override
+		public X509Certificate[] getAcceptedIssuers() {
+			return MemorizingTrustManager.this.getAcceptedIssuers();
+		}
+	}
 }
@@ -0,0 +1,224 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Stress tests for the hand-off between the threads waiting in
+ * interact() and the answers given by interactResult().
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MTMDecisionStressTest {
+	private static final int THREADS = 64;
+	private static final int PROMPTS = 20000;
+	private static final long TIMEOUT_SECONDS = 60;
+
+	@ClassRule
+	public static TemporaryFolder tmp = new TemporaryFolder();
+
+	private static MTMTestCertificates certs;
+
+	@BeforeClass
+	public static void generateCertificates() throws Exception {
+		certs = MTMTestCertificates.generate(tmp.newFolder());
+	}
+
+	// an instance that leaves answering to the test
+	private static MemorizingTrustManager silentTrustManager() {
+		MemorizingTrustManager mtm = new MemorizingTrustManager(RuntimeEnvironment.application,
+				new MTMMemoryStore(), false) {
+			@Override
+			protected void showDecisionUI() {
+			}
+		};
+		mtm.setDeferredDecisions(MemorizingTrustManager.DEFER_NEVER);
+		return mtm;
+	}
+
+	private static MTMDecision awaitOpenDecision() throws InterruptedException {
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+		MTMDecision d;
+		while ((d = MemorizingTrustManager.nextOpenDecision()) == null && System.nanoTime() < end)
+			Thread.sleep(1);
+		return d;
+	}
+
+	// runs the prompts on a thread pool, returns how many got the expected decision
+	private static int prompt(final MemorizingTrustManager mtm, int prompts, final String similarityKey,
+			final int expected) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+		final AtomicInteger ok = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(prompts);
+		for (int i = 0; i < prompts; i++) {
+			executor.execute(new Runnable() {
+				public void run() {
+					if (mtm.interact("stress", R.string.mtm_security_risk, similarityKey, null, null) == expected)
+						ok.incrementAndGet();
+					done.countDown();
+				}
+			});
+		}
+		done.await(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+		long stuck = done.getCount();
+		executor.shutdownNow();
+		assertEquals("stuck threads", 0, stuck);
+		return ok.get();
+	}
+
+	/** Prompts answered from showDecisionUI(), as MemorizingActivity does. */
+	@Test
+	public void answeredFromUI() throws Exception {
+		final MTMLoadHarness.RespondingTrustManager mtm =
+			new MTMLoadHarness.RespondingTrustManager(RuntimeEnvironment.application);
+		int ok = MTMTestUtil.callOnBackgroundThread(new Callable<Integer>() {
+			public Integer call() throws Exception {
+				return prompt(mtm, PROMPTS, null, MTMDecision.DECISION_ONCE);
+			}
+		});
+		assertEquals(PROMPTS, ok);
+		assertEquals(0, MemorizingTrustManager.getOpenDecisionIds().length);
+	}
+
+	/**
+	 * Prompts answered as soon as they are queued, often before the
+	 * waiting thread has entered wait().
+	 */
+	@Test
+	public void answeredBeforeWait() throws Exception {
+		MemorizingTrustManager mtm = silentTrustManager();
+		final AtomicBoolean stop = new AtomicBoolean();
+		Thread responder = new Thread("MTM test responder") {
+			public void run() {
+				while (!stop.get()) {
+					for (int id : MemorizingTrustManager.getOpenDecisionIds())
+						MemorizingTrustManager.interactResult(id, MTMDecision.DECISION_ALWAYS);
+					Thread.yield();
+				}
+			}
+		};
+		responder.start();
+		try {
+			assertEquals(PROMPTS, prompt(mtm, PROMPTS, null, MTMDecision.DECISION_ALWAYS));
+		} finally {
+			stop.set(true);
+			responder.join();
+		}
+	}
+
+	/** One answer applied to all similar prompts releases all their threads. */
+	@Test
+	public void answeredForAllSimilar() throws Exception {
+		final MemorizingTrustManager mtm = silentTrustManager();
+		final int prompts = THREADS;
+		Thread responder = new Thread("MTM test responder") {
+			public void run() {
+				try {
+					long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+					while (MemorizingTrustManager.getOpenDecisionIds().length < prompts
+							&& System.nanoTime() < end)
+						Thread.sleep(1);
+					MTMDecision d = MemorizingTrustManager.nextOpenDecision();
+					MemorizingTrustManager.interactResult(d.id, MTMDecision.DECISION_ONCE, true);
+				} catch (InterruptedException e) {
+					// the test fails with stuck threads
+				}
+			}
+		};
+		responder.start();
+		assertEquals(prompts, prompt(mtm, prompts, "similar", MTMDecision.DECISION_ONCE));
+		responder.join();
+	}
+
+	/** A notify() without an answer must not end the wait. */
+	@Test
+	public void spuriousWakeup() throws Exception {
+		final MemorizingTrustManager mtm = silentTrustManager();
+		final AtomicInteger result = new AtomicInteger(-1);
+		Thread waiter = new Thread("MTM test waiter") {
+			public void run() {
+				result.set(mtm.interact("stress", R.string.mtm_security_risk, null, null, null));
+			}
+		};
+		waiter.start();
+		MTMDecision d = awaitOpenDecision();
+		for (int i = 0; i < 100; i++) {
+			synchronized(d) {
+				d.notifyAll();
+			}
+		}
+		waiter.join(100);
+		assertTrue("returned without an answer", waiter.isAlive());
+		MemorizingTrustManager.interactResult(d.id, MTMDecision.DECISION_ABORT);
+		waiter.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+		assertEquals(MTMDecision.DECISION_ABORT, result.get());
+	}
+
+	/**
+	 * An interrupted thread gives up with its interrupt status set, while
+	 * the prompt stays open and an "always" is still stored.
+	 */
+	@Test
+	public void interrupted() throws Exception {
+		final MemorizingTrustManager mtm = silentTrustManager();
+		final AtomicInteger result = new AtomicInteger(-1);
+		final AtomicBoolean interrupted = new AtomicBoolean();
+		Thread waiter = new Thread("MTM test waiter") {
+			public void run() {
+				result.set(mtm.interact("stress", R.string.mtm_security_risk, null, certs.ca, "stress.example"));
+				interrupted.set(isInterrupted());
+			}
+		};
+		waiter.start();
+		MTMDecision d = awaitOpenDecision();
+		waiter.interrupt();
+		waiter.join(TimeUnit.SECONDS.toMillis(TIMEOUT_SECONDS));
+		assertEquals(MTMDecision.DECISION_INVALID, result.get());
+		assertTrue("interrupt status lost", interrupted.get());
+		assertEquals(d, MemorizingTrustManager.nextOpenDecision());
+
+		MemorizingTrustManager.interactResult(d.id, MTMDecision.DECISION_ALWAYS);
+		long end = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+		while (mtm.countCertificates(null) == 0 && System.nanoTime() < end)
+			Thread.sleep(10);
+		assertEquals(1, mtm.countCertificates(null));
+	}
+}
@@ -0,0 +1,320 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+
+import android.content.Context;
+
+/**
+ * Load harness: runs many concurrent TLS handshakes against local servers
+ * through an MTM instance, whose prompts are answered by a responder in
+ * place of MemorizingActivity.
+ * <p>
+ * The servers present a self-signed, an expired, a CA-signed and a
+ * CA-signed certificate for the wrong hostname. The CA is stored in MTM,
+ * so only the other ones cause prompts.
+ */
+class MTMLoadHarness {
+	static final int SELF_SIGNED = 0;
+	static final int EXPIRED = 1;
+	static final int WRONG_HOST = 2;
+	static final int CA_SIGNED = 3;
+	static final String[] KIND_NAMES = { "self-signed", "expired", "wrong-host", "CA-signed" };
+
+	/**
+	 * MTM instance that answers all open decisions as soon as they are
+	 * brought to the user's attention.
+	 */
+	static class RespondingTrustManager extends MemorizingTrustManager {
+		final AtomicInteger answered = new AtomicInteger();
+		volatile int decision = MTMDecision.DECISION_ONCE;
+
+		RespondingTrustManager(Context c) {
+			super(c, new MTMMemoryStore(), false);
+			// the blocking hand-off is what is under test
+			setDeferredDecisions(DEFER_NEVER);
+		}
+
+		@Override
+		protected void showDecisionUI() {
+			for (int id : getOpenDecisionIds()) {
+				interactResult(id, decision);
+				answered.incrementAndGet();
+			}
+		}
+	}
+
+	/** The outcome of a run. */
+	static class Report {
+		int handshakes;
+		final int[] accepted = new int[KIND_NAMES.length];
+		final int[] rejected = new int[KIND_NAMES.length];
+		int stuck;
+		int lostDecisions;
+		int answered;
+		long elapsedNanos;
+		long[] latencies;
+
+		double getHandshakesPerSecond() {
+			return handshakes * 1e9 / elapsedNanos;
+		}
+
+		/** Returns the latency percentile, in milliseconds. */
+		double getLatency(double percentile) {
+			if (latencies.length == 0)
+				return 0;
+			int i = (int)Math.ceil(percentile / 100 * latencies.length) - 1;
+			return latencies[Math.max(i, 0)] / 1e6;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(String.format("%d handshakes in %.1f s, %.0f/s, latency p50 %.1f ms, p99 %.1f ms, p99.9 %.1f ms, max %.1f ms%n",
+						handshakes, elapsedNanos / 1e9, getHandshakesPerSecond(),
+						getLatency(50), getLatency(99), getLatency(99.9), getLatency(100)));
+			for (int k = 0; k < KIND_NAMES.length; k++)
+				sb.append(String.format("  %-12s %6d accepted %6d rejected%n", KIND_NAMES[k], accepted[k], rejected[k]));
+			sb.append(String.format("  %d decisions answered, %d stuck threads, %d lost decisions",
+						answered, stuck, lostDecisions));
+			return sb.toString();
+		}
+	}
+
+	/** A TLS server on the loopback interface that completes handshakes. */
+	static class Server {
+		final SSLServerSocket socket;
+		private final ExecutorService workers = Executors.newCachedThreadPool(daemonThreads("MTM test server"));
+
+		Server(KeyStore ks) throws IOException, GeneralSecurityException {
+			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+			kmf.init(ks, MTMTestCertificates.PASSWORD);
+			SSLContext sc = SSLContext.getInstance("TLS");
+			sc.init(kmf.getKeyManagers(), null, null);
+			socket = (SSLServerSocket)sc.getServerSocketFactory()
+				.createServerSocket(0, 4096, InetAddress.getByName("127.0.0.1"));
+			workers.execute(new Runnable() {
+				public void run() {
+					accept();
+				}
+			});
+		}
+
+		int getPort() {
+			return socket.getLocalPort();
+		}
+
+		private void accept() {
+			while (!socket.isClosed()) {
+				final SSLSocket s;
+				try {
+					s = (SSLSocket)socket.accept();
+				} catch (IOException e) {
+					return;
+				}
+				workers.execute(new Runnable() {
+					public void run() {
+						try {
+							s.startHandshake();
+							// wait for the client to close the connection
+							s.getInputStream().read();
+						} catch (IOException e) {
+							// rejected by the client
+						} finally {
+							try {
+								s.close();
+							} catch (IOException e) {
+								// nothing to do
+							}
+						}
+					}
+				});
+			}
+		}
+
+		void close() throws IOException {
+			socket.close();
+			workers.shutdownNow();
+		}
+	}
+
+	private static ThreadFactory daemonThreads(final String name) {
+		return new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, name);
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	final RespondingTrustManager mtm;
+	private final Server[] servers = new Server[KIND_NAMES.length];
+	private final SSLSocketFactory factory;
+	private final HostnameVerifier verifier;
+
+	MTMLoadHarness(Context c, MTMTestCertificates certs) throws IOException, GeneralSecurityException {
+		mtm = new RespondingTrustManager(c);
+		mtm.storeCert(certs.ca);
+		servers[SELF_SIGNED] = new Server(certs.selfSigned);
+		servers[EXPIRED] = new Server(certs.expired);
+		servers[WRONG_HOST] = new Server(certs.wrongHost);
+		servers[CA_SIGNED] = new Server(certs.caSigned);
+		factory = mtm.getSSLSocketFactory("TLS");
+		verifier = mtm.wrapHostnameVerifier(new HostnameVerifier() {
+			public boolean verify(String hostname, SSLSession session) {
+				try {
+					return MTMCertificates.certMatchesHostname(
+							(X509Certificate)session.getPeerCertificates()[0], hostname);
+				} catch (IOException e) {
+					return false;
+				}
+			}
+		});
+	}
+
+	void close() throws IOException {
+		for (Server s : servers)
+			s.close();
+	}
+
+	/**
+	 * Runs one handshake against a server and verifies its hostname.
+	 *
+	 * @return whether the connection was accepted
+	 */
+	boolean connect(int kind) {
+		SSLSocket s = null;
+		try {
+			s = (SSLSocket)factory.createSocket("localhost", servers[kind].getPort());
+			s.setSoTimeout(30000);
+			s.startHandshake();
+			SSLSession session = s.getSession();
+			boolean accepted = verifier.verify("localhost", session);
+			// every handshake should check the certificate again
+			session.invalidate();
+			return accepted;
+		} catch (IOException e) {
+			return false;
+		} finally {
+			if (s != null) {
+				try {
+					s.close();
+				} catch (IOException e) {
+					// nothing to do
+				}
+			}
+		}
+	}
+
+	/**
+	 * Runs handshakes against all servers in turn.
+	 *
+	 * @param handshakes total number of handshakes
+	 * @param concurrency number of client threads
+	 * @param timeoutMillis after this, unfinished handshakes count as stuck
+	 */
+	Report run(int handshakes, int concurrency, long timeoutMillis) throws InterruptedException {
+		final Report report = new Report();
+		final List<Thread> clients = Collections.synchronizedList(new ArrayList<Thread>());
+		ExecutorService executor = Executors.newFixedThreadPool(concurrency, new ThreadFactory() {
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "MTM test client");
+				t.setDaemon(true);
+				clients.add(t);
+				return t;
+			}
+		});
+		final long[] latencies = new long[handshakes];
+		final AtomicInteger finished = new AtomicInteger();
+		final CountDownLatch done = new CountDownLatch(handshakes);
+		int answeredBefore = mtm.answered.get();
+		long start = System.nanoTime();
+		for (int i = 0; i < handshakes; i++) {
+			final int kind = i % KIND_NAMES.length;
+			executor.execute(new Runnable() {
+				public void run() {
+					long t = System.nanoTime();
+					boolean accepted = connect(kind);
+					t = System.nanoTime() - t;
+					synchronized (report) {
+						latencies[finished.getAndIncrement()] = t;
+						if (accepted)
+							report.accepted[kind]++;
+						else
+							report.rejected[kind]++;
+					}
+					done.countDown();
+				}
+			});
+		}
+		done.await(timeoutMillis, TimeUnit.MILLISECONDS);
+		report.elapsedNanos = System.nanoTime() - start;
+		synchronized (report) {
+			report.handshakes = finished.get();
+			report.latencies = Arrays.copyOf(latencies, report.handshakes);
+		}
+		Arrays.sort(report.latencies);
+		report.stuck = handshakes - report.handshakes;
+		report.answered = mtm.answered.get() - answeredBefore;
+		// a thread waiting for a decision that is no longer open waits forever
+		int waiting = 0;
+		synchronized (clients) {
+			for (Thread t : clients) {
+				for (StackTraceElement e : t.getStackTrace()) {
+					if (e.getMethodName().equals("interact")) {
+						waiting++;
+						break;
+					}
+				}
+			}
+		}
+		report.lostDecisions = Math.max(0, waiting - MemorizingTrustManager.getOpenDecisionIds().length);
+		executor.shutdownNow();
+		return report;
+	}
+}
@@ -0,0 +1,91 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.concurrent.Callable;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.RunWith;
+import org.robolectric.RobolectricTestRunner;
+import org.robolectric.RuntimeEnvironment;
+
+/**
+ * Concurrent handshakes against local TLS servers, to catch scaling
+ * regressions. The report is printed to stdout.
+ */
+@RunWith(RobolectricTestRunner.class)
+public class MTMLoadTest {
+	private static final int HANDSHAKES = 2000;
+	private static final int CONCURRENCY = 64;
+	private static final long TIMEOUT_MILLIS = 120000;
+
+	@ClassRule
+	public static TemporaryFolder tmp = new TemporaryFolder();
+
+	private static MTMTestCertificates certs;
+
+	@BeforeClass
+	public static void generateCertificates() throws Exception {
+		certs = MTMTestCertificates.generate(tmp.newFolder());
+	}
+
+	private MTMLoadHarness.Report run(final int decision) throws Exception {
+		final MTMLoadHarness harness = new MTMLoadHarness(RuntimeEnvironment.application, certs);
+		harness.mtm.decision = decision;
+		try {
+			MTMLoadHarness.Report report = MTMTestUtil.callOnBackgroundThread(new Callable<MTMLoadHarness.Report>() {
+				public MTMLoadHarness.Report call() throws Exception {
+					return harness.run(HANDSHAKES, CONCURRENCY, TIMEOUT_MILLIS);
+				}
+			});
+			System.out.println(report);
+			assertEquals("stuck threads", 0, report.stuck);
+			assertEquals("lost decisions", 0, report.lostDecisions);
+			return report;
+		} finally {
+			harness.close();
+		}
+	}
+
+	@Test
+	public void acceptOnce() throws Exception {
+		MTMLoadHarness.Report report = run(MTMDecision.DECISION_ONCE);
+		for (int kind = 0; kind < MTMLoadHarness.KIND_NAMES.length; kind++)
+			assertEquals(MTMLoadHarness.KIND_NAMES[kind], HANDSHAKES / 4, report.accepted[kind]);
+	}
+
+	@Test
+	public void abort() throws Exception {
+		MTMLoadHarness.Report report = run(MTMDecision.DECISION_ABORT);
+		assertEquals(HANDSHAKES / 4, report.accepted[MTMLoadHarness.CA_SIGNED]);
+		assertEquals(HANDSHAKES / 4, report.rejected[MTMLoadHarness.SELF_SIGNED]);
+		assertEquals(HANDSHAKES / 4, report.rejected[MTMLoadHarness.EXPIRED]);
+		assertEquals(HANDSHAKES / 4, report.rejected[MTMLoadHarness.WRONG_HOST]);
+	}
+}
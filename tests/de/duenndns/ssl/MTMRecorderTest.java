@@ -0,0 +1,141 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.List;
+
+import javax.net.ssl.X509TrustManager;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Recording a corpus with {@link MTMRecorder} and reading and replaying
+ * it with {@link MTMReplay}, including after a recording was cut off.
+ */
+public class MTMRecorderTest {
+	@ClassRule
+	public static TemporaryFolder certDir = new TemporaryFolder();
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static X509Certificate[] trusted;
+	private static X509Certificate[] untrusted;
+
+	@BeforeClass
+	public static void generateCertificates() throws Exception {
+		MTMTestCertificates certs = MTMTestCertificates.generate(certDir.newFolder());
+		trusted = new X509Certificate[] { (X509Certificate)certs.caSigned.getCertificate("server"), certs.ca };
+		untrusted = new X509Certificate[] { (X509Certificate)certs.selfSigned.getCertificate("server") };
+	}
+
+	// trusts the chains whose leaf is the one of the trusted chain
+	private static final X509TrustManager TRUST_MANAGER = new X509TrustManager() {
+		public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			checkServerTrusted(chain, authType);
+		}
+
+		public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+			if (!chain[0].equals(trusted[0]))
+				throw new CertificateException("not trusted");
+		}
+
+		public X509Certificate[] getAcceptedIssuers() {
+			return new X509Certificate[0];
+		}
+	};
+
+	// records a session of checks and closes the recorder
+	private static void record(File corpus, int checks) {
+		MTMRecorder recorder = new MTMRecorder(corpus, 1.0, Long.MAX_VALUE);
+		for (int i = 0; i < checks; i++) {
+			if (i % 2 == 0)
+				recorder.recordCheck(trusted, "ECDHE_ECDSA", true, "localhost", true);
+			else
+				recorder.recordCheck(untrusted, "ECDHE_ECDSA", true, "localhost", false);
+		}
+		recorder.recordHostname(trusted, "localhost", true);
+		recorder.close();
+		assertEquals(0, recorder.getDropped());
+	}
+
+	@Test
+	public void replayMatchesRecording() throws Exception {
+		File corpus = new File(tmp.getRoot(), "corpus.mtmr");
+		record(corpus, 4);
+
+		List<MTMReplay.Record> records = MTMReplay.read(corpus);
+		assertEquals(5, records.size());
+		assertEquals(MTMRecorder.TYPE_CHECK, records.get(0).type);
+		assertEquals("localhost", records.get(0).hostname);
+		assertEquals(2, records.get(0).chain.length);
+		assertEquals(trusted[1], records.get(0).chain[1]);
+		assertEquals(MTMRecorder.TYPE_HOSTNAME, records.get(4).type);
+
+		MTMReplay.Result result = MTMReplay.replay(TRUST_MANAGER, corpus, 2);
+		assertEquals(10, result.getChecks());
+		assertEquals(0, result.getMismatches());
+	}
+
+	@Test
+	public void truncatedRecordingIsContinued() throws Exception {
+		File corpus = new File(tmp.getRoot(), "corpus.mtmr");
+		record(corpus, 4);
+		long complete = corpus.length();
+		assertEquals(complete, MTMReplay.completeLength(corpus));
+
+		// cut off in the middle of the last record, as by a killed process
+		RandomAccessFile raf = new RandomAccessFile(corpus, "rw");
+		try {
+			raf.setLength(complete - 3);
+		} finally {
+			raf.close();
+		}
+		assertEquals(4, MTMReplay.read(corpus).size());
+		assertTrue(MTMReplay.completeLength(corpus) < complete - 3);
+
+		// the next session starts after the last complete record
+		record(corpus, 2);
+		List<MTMReplay.Record> records = MTMReplay.read(corpus);
+		assertEquals(7, records.size());
+		assertEquals(MTMRecorder.TYPE_CHECK, records.get(4).type);
+		assertEquals(trusted[0], records.get(4).chain[0]);
+		assertEquals(untrusted[0], records.get(5).chain[0]);
+		assertEquals(corpus.length(), MTMReplay.completeLength(corpus));
+
+		MTMReplay.Result result = MTMReplay.replay(TRUST_MANAGER, corpus, 1);
+		assertEquals(7, result.getChecks());
+		assertEquals(0, result.getMismatches());
+	}
+}
@@ -0,0 +1,96 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.cert.X509Certificate;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Rule matching of {@link MTMRulePolicy}, in particular that issuer rules
+ * only match chains that are really signed by the issuer.
+ */
+public class MTMRulePolicyTest {
+	@ClassRule
+	public static TemporaryFolder tmp = new TemporaryFolder();
+
+	private static MTMTestCertificates certs;
+	private static X509Certificate[] caChain;
+
+	@BeforeClass
+	public static void generateCertificates() throws Exception {
+		certs = MTMTestCertificates.generate(tmp.newFolder());
+		caChain = new X509Certificate[] { (X509Certificate)certs.caSigned.getCertificate("server") };
+	}
+
+	@Test
+	public void chainsToIssuer() {
+		assertTrue(MTMRulePolicy.chainsTo(caChain, certs.ca));
+		assertTrue(MTMRulePolicy.chainsTo(new X509Certificate[] { caChain[0], certs.ca }, certs.ca));
+	}
+
+	@Test
+	public void nonCaSignerDoesNotChain() {
+		assertFalse(MTMRulePolicy.chainsTo(certs.signedByLeaf, certs.ca));
+		// a leaf is no issuer, even if it signed the chain
+		assertFalse(MTMRulePolicy.chainsTo(certs.signedByLeaf, certs.signedByLeaf[1]));
+	}
+
+	@Test
+	public void issuerRuleAcceptsOnlyIssuedChains() {
+		MTMRulePolicy policy = new MTMRulePolicy()
+			.addIssuerRule(certs.ca, MTMPolicy.ERROR_ANY, MTMPolicy.ALWAYS);
+		assertEquals(MTMPolicy.ALWAYS, policy.decide(caChain, "localhost", MTMPolicy.ERROR_UNTRUSTED));
+		assertEquals(MTMPolicy.NONE, policy.decide(certs.signedByLeaf, "attacker.example",
+				MTMPolicy.ERROR_UNTRUSTED));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void issuerNameCannotAccept() {
+		new MTMRulePolicy().addIssuerRule("CN=MTM Test CA", MTMPolicy.ERROR_ANY, MTMPolicy.ALWAYS);
+	}
+
+	@Test
+	public void issuerNameCanAbort() {
+		MTMRulePolicy policy = new MTMRulePolicy()
+			.addIssuerRule("CN=MTM Test CA", MTMPolicy.ERROR_ANY, MTMPolicy.ABORT);
+		assertEquals(MTMPolicy.ABORT, policy.decide(caChain, "localhost", MTMPolicy.ERROR_UNTRUSTED));
+	}
+
+	@Test
+	public void hostRuleMatchesOneLabel() {
+		MTMRulePolicy policy = new MTMRulePolicy()
+			.addHostRule("*.example.com", MTMPolicy.ERROR_ANY, MTMPolicy.ONCE);
+		assertEquals(MTMPolicy.ONCE, policy.decide(caChain, "www.example.com", MTMPolicy.ERROR_UNTRUSTED));
+		assertEquals(MTMPolicy.NONE, policy.decide(caChain, "a.b.example.com", MTMPolicy.ERROR_UNTRUSTED));
+		assertEquals(MTMPolicy.NONE, policy.decide(caChain, null, MTMPolicy.ERROR_UNTRUSTED));
+	}
+}
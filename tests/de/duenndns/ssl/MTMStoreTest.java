@@ -0,0 +1,242 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.security.KeyStoreException;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Storing, finding and deleting certificates in the {@link MTMStore}
+ * implementations, and picking up the changes of another instance.
+ */
+public class MTMStoreTest {
+	@ClassRule
+	public static TemporaryFolder certDir = new TemporaryFolder();
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static X509Certificate server;
+	private static X509Certificate ca;
+
+	@BeforeClass
+	public static void generateCertificates() throws Exception {
+		MTMTestCertificates certs = MTMTestCertificates.generate(certDir.newFolder());
+		server = (X509Certificate)certs.caSigned.getCertificate("server");
+		ca = certs.ca;
+	}
+
+	private static void put(MTMStore store, String alias, X509Certificate cert) throws KeyStoreException {
+		store.beginUpdate();
+		try {
+			store.setCertificate(alias, cert);
+		} finally {
+			store.endUpdate();
+		}
+	}
+
+	private static void delete(MTMStore store, String alias) throws KeyStoreException {
+		store.beginUpdate();
+		try {
+			store.deleteCertificate(alias);
+		} finally {
+			store.endUpdate();
+		}
+	}
+
+	private static void assertContent(MTMStore store) {
+		assertEquals(Arrays.asList("ca", "server"), sorted(store.aliases()));
+		assertEquals(2, store.size());
+		assertEquals(server, store.getCertificate("server"));
+		assertEquals(ca, store.getCertificate("ca"));
+		assertEquals(Collections.singletonList("server"), store.findAliases(MTMStore.fingerprint(server)));
+		assertEquals(Collections.singletonList("ca"), store.findAliasesByKey(MTMStore.keyFingerprint(ca)));
+		assertTrue(store.containsSubject(ca.getSubjectX500Principal()));
+		assertEquals(Collections.singletonList("server"),
+				store.findAliasesBySubject(server.getSubjectX500Principal()));
+		assertEquals(server.getNotAfter(), store.getInfo("server").getNotAfter());
+	}
+
+	private static List<String> sorted(List<String> list) {
+		List<String> result = new ArrayList<String>(list);
+		Collections.sort(result);
+		return result;
+	}
+
+	// stores, changes and deletes entries, checking a fresh instance each time
+	private void roundTrip(StoreFactory factory) throws KeyStoreException {
+		MTMStore store = factory.create();
+		store.load();
+		assertEquals(0, store.size());
+		put(store, "server", server);
+		put(store, "ca", ca);
+		assertContent(store);
+
+		MTMStore reloaded = factory.create();
+		reloaded.load();
+		assertContent(reloaded);
+
+		delete(reloaded, "server");
+		assertNull(reloaded.getCertificate("server"));
+		assertTrue(reloaded.findAliases(MTMStore.fingerprint(server)).isEmpty());
+		reloaded = factory.create();
+		reloaded.load();
+		assertEquals(Collections.singletonList("ca"), reloaded.aliases());
+	}
+
+	// an instance picks up the writes of another one on refresh()
+	private void crossInstanceRefresh(StoreFactory factory) throws KeyStoreException {
+		MTMStore writer = factory.create();
+		MTMStore reader = factory.create();
+		writer.load();
+		reader.load();
+		assertFalse(reader.refresh());
+
+		long revision = reader.getRevision();
+		put(writer, "server", server);
+		assertTrue(reader.refresh());
+		assertTrue(reader.getRevision() != revision);
+		assertEquals(server, reader.getCertificate("server"));
+		assertFalse(reader.refresh());
+
+		delete(writer, "server");
+		assertTrue(reader.refresh());
+		assertTrue(reader.aliases().isEmpty());
+	}
+
+	private interface StoreFactory {
+		MTMStore create();
+	}
+
+	private StoreFactory keyStoreFile() {
+		final File file = new File(tmp.getRoot(), "KeyStore.bks");
+		return new StoreFactory() {
+			public MTMStore create() {
+				return new MTMKeyStoreFile(file);
+			}
+		};
+	}
+
+	private StoreFactory indexedStore() {
+		final File file = new File(tmp.getRoot(), "certs.mtm");
+		return new StoreFactory() {
+			public MTMStore create() {
+				return new MTMIndexedStore(file);
+			}
+		};
+	}
+
+	@Test
+	public void memoryStoreRoundTrip() throws KeyStoreException {
+		MTMStore store = new MTMMemoryStore();
+		store.load();
+		put(store, "server", server);
+		put(store, "ca", ca);
+		assertContent(store);
+		delete(store, "server");
+		assertEquals(Collections.singletonList("ca"), store.aliases());
+	}
+
+	@Test
+	public void keyStoreFileRoundTrip() throws KeyStoreException {
+		roundTrip(keyStoreFile());
+	}
+
+	@Test
+	public void indexedStoreRoundTrip() throws KeyStoreException {
+		roundTrip(indexedStore());
+	}
+
+	@Test
+	public void keyStoreFileRefresh() throws KeyStoreException {
+		crossInstanceRefresh(keyStoreFile());
+	}
+
+	@Test
+	public void indexedStoreRefresh() throws KeyStoreException {
+		crossInstanceRefresh(indexedStore());
+	}
+
+	@Test
+	public void indexedStoreReportsChangeSeenWhileDecoding() throws KeyStoreException {
+		StoreFactory factory = indexedStore();
+		MTMStore writer = factory.create();
+		MTMStore reader = factory.create();
+		writer.load();
+		put(writer, "server", server);
+		reader.load();
+		// replaced after the reader has indexed, but not decoded it
+		put(writer, "server", ca);
+		assertEquals(ca, reader.getCertificate("server"));
+		assertTrue(reader.refresh());
+	}
+
+	@Test
+	public void partitionsAreIsolated() throws KeyStoreException {
+		MTMStore parent = indexedStore().create();
+		MTMStore alice = parent.partition("alice");
+		MTMStore bob = parent.partition("bob");
+		alice.load();
+		bob.load();
+
+		put(alice, "server", server);
+		assertEquals(Collections.singletonList("server"), alice.aliases());
+		assertTrue(bob.aliases().isEmpty());
+		assertNull(bob.getCertificate("server"));
+		assertTrue(bob.findAliases(MTMStore.fingerprint(server)).isEmpty());
+		assertFalse(bob.containsSubject(server.getSubjectX500Principal()));
+		assertEquals(Collections.singletonList("alice/server"), parent.aliases());
+
+		put(bob, "server", ca);
+		assertEquals(server, alice.getCertificate("server"));
+		assertEquals(ca, bob.getCertificate("server"));
+		delete(bob, "server");
+		assertEquals(server, alice.getCertificate("server"));
+
+		// another process sees the partitions of the same file
+		MTMStore other = indexedStore().create().partition("alice");
+		other.load();
+		assertEquals(server, other.getCertificate("server"));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void partitionNameCannotNest() {
+		new MTMMemoryStore().partition("alice/bob");
+	}
+}
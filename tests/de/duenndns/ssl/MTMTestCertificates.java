@@ -0,0 +1,146 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Test certificates, generated with the JDK's keytool into a directory.
+ */
+class MTMTestCertificates {
+	static final char[] PASSWORD = "changeit".toCharArray();
+
+	/** Self-signed for localhost. */
+	KeyStore selfSigned;
+	/** Self-signed for localhost, expired. */
+	KeyStore expired;
+	/** Signed by {@link #ca}, but for another hostname. */
+	KeyStore wrongHost;
+	/** Signed by {@link #ca} for localhost. */
+	KeyStore caSigned;
+	X509Certificate ca;
+	/**
+	 * A chain whose leaf is signed by the non-CA certificate of
+	 * {@link #caSigned}, which must not be accepted as chaining to {@link #ca}.
+	 */
+	X509Certificate[] signedByLeaf;
+
+	static MTMTestCertificates generate(File dir) throws IOException, GeneralSecurityException {
+		dir.mkdirs();
+		MTMTestCertificates c = new MTMTestCertificates();
+		c.selfSigned = selfSigned(dir, "self", "-validity", "3650");
+		c.expired = selfSigned(dir, "expired", "-startdate", "-10d", "-validity", "1");
+		keytool(dir, "-genkeypair", "-keystore", "ca.p12", "-alias", "ca",
+				"-dname", "CN=MTM Test CA", "-ext", "bc:c", "-validity", "3650");
+		keytool(dir, "-exportcert", "-keystore", "ca.p12", "-alias", "ca", "-file", "ca.crt");
+		c.caSigned = caSigned(dir, "leaf", "localhost", "dns:localhost,ip:127.0.0.1");
+		c.wrongHost = caSigned(dir, "wrong", "wrong.example", "dns:wrong.example");
+		keytool(dir, "-genkeypair", "-keystore", "attacker.p12", "-alias", "server", "-dname", "CN=attacker.example");
+		keytool(dir, "-certreq", "-keystore", "attacker.p12", "-alias", "server", "-file", "attacker.csr");
+		keytool(dir, "-gencert", "-keystore", "leaf.p12", "-alias", "server", "-infile", "attacker.csr",
+				"-outfile", "attacker.crt", "-ext", "SAN=dns:attacker.example", "-validity", "3650");
+		c.ca = readCertificate(new File(dir, "ca.crt"));
+		c.signedByLeaf = new X509Certificate[] {
+			readCertificate(new File(dir, "attacker.crt")),
+			(X509Certificate)c.caSigned.getCertificate("server")
+		};
+		return c;
+	}
+
+	private static X509Certificate readCertificate(File file) throws IOException, GeneralSecurityException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return (X509Certificate)CertificateFactory.getInstance("X.509").generateCertificate(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	private static KeyStore selfSigned(File dir, String name, String... validity)
+		throws IOException, GeneralSecurityException
+	{
+		List<String> args = new ArrayList<String>(Arrays.asList("-genkeypair",
+				"-keystore", name + ".p12", "-alias", "server", "-dname", "CN=localhost",
+				"-ext", "SAN=dns:localhost,ip:127.0.0.1"));
+		args.addAll(Arrays.asList(validity));
+		keytool(dir, args.toArray(new String[args.size()]));
+		return load(new File(dir, name + ".p12"));
+	}
+
+	private static KeyStore caSigned(File dir, String name, String cn, String san)
+		throws IOException, GeneralSecurityException
+	{
+		String store = name + ".p12";
+		keytool(dir, "-genkeypair", "-keystore", store, "-alias", "server", "-dname", "CN=" + cn);
+		keytool(dir, "-certreq", "-keystore", store, "-alias", "server", "-file", name + ".csr");
+		keytool(dir, "-gencert", "-keystore", "ca.p12", "-alias", "ca", "-infile", name + ".csr",
+				"-outfile", name + ".crt", "-ext", "SAN=" + san, "-validity", "3650");
+		keytool(dir, "-importcert", "-keystore", store, "-alias", "ca", "-file", "ca.crt", "-noprompt");
+		keytool(dir, "-importcert", "-keystore", store, "-alias", "server", "-file", name + ".crt");
+		return load(new File(dir, store));
+	}
+
+	private static void keytool(File dir, String... args) throws IOException {
+		List<String> cmd = new ArrayList<String>();
+		cmd.add(new File(System.getProperty("java.home"), "bin/keytool").getPath());
+		cmd.addAll(Arrays.asList(args));
+		cmd.addAll(Arrays.asList("-storetype", "PKCS12", "-storepass", new String(PASSWORD)));
+		if (args[0].equals("-genkeypair"))
+			cmd.addAll(Arrays.asList("-keyalg", "EC", "-groupname", "secp256r1"));
+		Process p = new ProcessBuilder(cmd).directory(dir).redirectErrorStream(true).start();
+		InputStream out = p.getInputStream();
+		byte[] buf = new byte[4096];
+		StringBuilder log = new StringBuilder();
+		for (int n; (n = out.read(buf)) > 0; )
+			log.append(new String(buf, 0, n, "UTF-8"));
+		try {
+			if (p.waitFor() != 0)
+				throw new IOException("keytool " + args[0] + " failed: " + log);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("keytool " + args[0] + " interrupted");
+		}
+	}
+
+	private static KeyStore load(File file) throws IOException, GeneralSecurityException {
+		KeyStore ks = KeyStore.getInstance("PKCS12");
+		InputStream in = new FileInputStream(file);
+		try {
+			ks.load(in, PASSWORD);
+		} finally {
+			in.close();
+		}
+		return ks;
+	}
+}
@@ -0,0 +1,49 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import android.os.Looper;
+
+import org.robolectric.Shadows;
+import org.robolectric.shadows.ShadowLooper;
+
+class MTMTestUtil {
+	/**
+	 * Runs a task on another thread while the test thread, which is the
+	 * main thread, runs what MTM posts to it, e.g. showDecisionUI().
+	 */
+	static <T> T callOnBackgroundThread(Callable<T> task) throws Exception {
+		FutureTask<T> future = new FutureTask<T>(task);
+		new Thread(future, "MTM test").start();
+		ShadowLooper looper = Shadows.shadowOf(Looper.getMainLooper());
+		while (!future.isDone()) {
+			looper.idle();
+			Thread.sleep(1);
+		}
+		return future.get();
+	}
+}
@@ -0,0 +1,118 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.cert.CertificateException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Delivering and formatting events with {@link MTMTrace} and its sinks.
+ */
+public class MTMTraceTest {
+	// sinks added by a test, removed again after it
+	private final List<MTMTrace.Sink> added = new ArrayList<MTMTrace.Sink>();
+
+	private <T extends MTMTrace.Sink> T add(T sink) {
+		MTMTrace.addSink(sink);
+		added.add(sink);
+		return sink;
+	}
+
+	@After
+	public void removeSinks() {
+		for (MTMTrace.Sink sink : added)
+			MTMTrace.removeSink(sink);
+	}
+
+	@Test
+	public void formatsArguments() {
+		assertEquals("checkCertTrusted: authType RSA, server true",
+				MTMTrace.format(MTMTrace.CHECK_CERT, "RSA", true, 0));
+		assertEquals("decision for example.com deferred: 3",
+				MTMTrace.format(MTMTrace.VERIFIER_DEFERRED, "example.com", null, 3));
+	}
+
+	@Test
+	public void ringBufferKeepsLatestEvents() {
+		MTMTrace.RingBufferSink ring = add(new MTMTrace.RingBufferSink(2, Level.FINE));
+		assertTrue(MTMTrace.isEnabled(MTMTrace.HOSTNAME_KNOWN));
+		MTMTrace.event(MTMTrace.HOSTNAME_KNOWN, "a.example");
+		MTMTrace.event(MTMTrace.HOSTNAME_KNOWN, "b.example");
+		MTMTrace.event(MTMTrace.DEFAULT_FAILED, new CertificateException("untrusted"));
+		MTMTrace.event(MTMTrace.HOSTNAME_KNOWN, "c.example");
+
+		String[] lines = ring.dump().split("\n");
+		assertEquals(2, lines.length);
+		// the FINER event is below the sink's level
+		assertTrue(lines[0], lines[0].endsWith("certificate for b.example is in our keystore"));
+		assertTrue(lines[1], lines[1].endsWith("certificate for c.example is in our keystore"));
+
+		ring.clear();
+		assertEquals("", ring.dump());
+	}
+
+	@Test
+	public void thrownArgumentIsAppended() {
+		MTMTrace.RingBufferSink ring = add(new MTMTrace.RingBufferSink(4, Level.ALL));
+		MTMTrace.event(MTMTrace.DEFAULT_FAILED, new CertificateException("untrusted"));
+		assertTrue(ring.dump(), ring.dump().endsWith(
+				"defaultTrustManager failed: java.security.cert.CertificateException: untrusted\n"));
+	}
+
+	@Test
+	public void brokenSinkDoesNotStopOthers() {
+		add(new MTMTrace.Sink() {
+			public boolean isEnabled(Level level) {
+				return true;
+			}
+
+			public void trace(long nanoTime, int event, Level level, Object a, Object b, long n) {
+				throw new IllegalStateException("broken");
+			}
+		});
+		MTMTrace.RingBufferSink ring = add(new MTMTrace.RingBufferSink(4, Level.ALL));
+		MTMTrace.event(MTMTrace.NO_PEER_HOST);
+		assertTrue(ring.dump().endsWith("no peer hostname available, rejecting\n"));
+	}
+
+	@Test
+	public void removedSinkGetsNoEvents() {
+		MTMTrace.RingBufferSink ring = add(new MTMTrace.RingBufferSink(4, Level.ALL));
+		assertTrue(Arrays.asList(MTMTrace.getSinks()).contains(ring));
+		MTMTrace.removeSink(ring);
+		assertFalse(Arrays.asList(MTMTrace.getSinks()).contains(ring));
+		MTMTrace.event(MTMTrace.NO_PEER_HOST);
+		assertEquals("", ring.dump());
+	}
+}
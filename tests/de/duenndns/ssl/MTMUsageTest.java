@@ -0,0 +1,109 @@
+/* MemorizingTrustManager - a TrustManager which asks the user about invalid
+ *  certificates and memorizes their decision.
+ *
+ * Copyright (c) 2010 Georg Lukas <georg@op-co.de>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package de.duenndns.ssl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Selecting the least recently used entries for eviction with
+ * {@link MTMUsage}, and keeping the usage times across restarts.
+ */
+public class MTMUsageTest {
+	@Rule
+	public TemporaryFolder tmp = new TemporaryFolder();
+
+	private static final List<String> ALIASES = Arrays.asList("a", "b", "c", "d");
+
+	// makes sure the next use is later than the previous one
+	private static void tick() throws InterruptedException {
+		Thread.sleep(5);
+	}
+
+	@Test
+	public void nothingEvictedBelowLimit() {
+		MTMUsage usage = new MTMUsage(null);
+		assertTrue(usage.selectEvictions(ALIASES, 4).isEmpty());
+		assertTrue(usage.selectEvictions(ALIASES, 10).isEmpty());
+	}
+
+	@Test
+	public void evictsLeastRecentlyUsedFirst() throws InterruptedException {
+		MTMUsage usage = new MTMUsage(null);
+		tick();
+		usage.markUsed("c");
+		tick();
+		usage.markUsed("a");
+		// b and d count as used when tracking started, ties by alias
+		assertEquals(Arrays.asList("b", "d"), usage.selectEvictions(ALIASES, 2));
+		assertEquals(Arrays.asList("b", "d", "c"), usage.selectEvictions(ALIASES, 1));
+	}
+
+	@Test
+	public void recentUseIsNotRecordedAgain() throws InterruptedException {
+		MTMUsage usage = new MTMUsage(null);
+		usage.markUsed("a");
+		long first = usage.getLastUse("a");
+		tick();
+		usage.markUsed("a");
+		assertEquals(first, usage.getLastUse("a"));
+	}
+
+	@Test
+	public void usageIsKeptAcrossRestarts() throws InterruptedException {
+		File file = new File(tmp.getRoot(), "KeyStore.bks.lastuse");
+		MTMUsage usage = new MTMUsage(file);
+		usage.markUsed(Arrays.asList("a", "b"));
+		usage.retain(Arrays.asList("a", "c", "d"));
+		usage.save();
+		long used = usage.getLastUse("a");
+
+		tick();
+		MTMUsage restarted = new MTMUsage(file);
+		assertEquals(used, restarted.getLastUse("a"));
+		// forgotten by retain(), counts as used at the restart
+		assertTrue(restarted.getLastUse("b") > used);
+		assertEquals(Collections.singletonList("a"),
+				restarted.selectEvictions(Arrays.asList("a", "b"), 1));
+	}
+
+	@Test
+	public void usageFileFollowsStore() {
+		File store = new File(tmp.getRoot(), "certs.mtm");
+		assertEquals(new File(store + ".lastuse"), MTMUsage.getUsageFile(new MTMIndexedStore(store)));
+		assertEquals(new File(store + ".lastuse.alice"),
+				MTMUsage.getUsageFile(new MTMIndexedStore(store).partition("alice")));
+		assertNull(MTMUsage.getUsageFile(new MTMMemoryStore()));
+	}
+}